@@ -15,8 +15,8 @@
  */
 package me.cmoz.grizzly.protobuf;
 
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.ExtensionRegistryLite;
-import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.MessageLite;
 import org.glassfish.grizzly.AbstractTransformer;
 import org.glassfish.grizzly.Buffer;
@@ -24,10 +24,15 @@ import org.glassfish.grizzly.TransformationException;
 import org.glassfish.grizzly.TransformationResult;
 import org.glassfish.grizzly.attributes.Attribute;
 import org.glassfish.grizzly.attributes.AttributeStorage;
+import org.glassfish.grizzly.memory.Buffers;
+import org.glassfish.grizzly.utils.BufferInputStream;
 
 import java.io.IOException;
 
+import lombok.AccessLevel;
+import lombok.Getter;
 import lombok.NonNull;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 import static org.glassfish.grizzly.TransformationResult.createErrorResult;
@@ -60,13 +65,53 @@ abstract class AbstractProtobufDecoder extends AbstractTransformer<Buffer, Messa
     /** The name of the decoder attribute for the size of the message. */
     public static final String MESSAGE_LENGTH_ATTR =
             "grizzly-protobuf-message-length";
+    /** The name of the decoder attribute for the flyweight message view. */
+    public static final String FLYWEIGHT_ATTR =
+            "grizzly-protobuf-flyweight";
+    /** The name of the decoder attribute for the previous messages received. */
+    public static final String DELTA_STATE_ATTR =
+            "grizzly-protobuf-delta-received";
+    /** The name of the decoder attribute for the frame waiting for data. */
+    public static final String PENDING_FRAME_ATTR =
+            "grizzly-protobuf-pending-frame";
+    /** The name of the decoder attribute for the start of the traced frame. */
+    public static final String FRAME_START_ATTR =
+            "grizzly-protobuf-frame-start";
 
     /** The base protocol buffers serialization unit. */
+    @Getter(AccessLevel.PACKAGE)
     private final MessageLite prototype;
     /** A table of known extensions, searchable by name or field number. */
     private final ExtensionRegistryLite extensionRegistry;
     /** The attribute for the length of the message. */
     private final Attribute<Integer> messageLengthAttr;
+    /** The attribute for the reusable flyweight view of the message. */
+    private final Attribute<ProtobufFlyweight> flyweightAttr;
+    /** The attribute for the previous messages received. */
+    private final Attribute<DeltaEncoding.State> deltaStateAttr;
+    /** The attribute for the frame waiting for more data. */
+    private final Attribute<PendingFrameGuard.PendingFrame> pendingFrameAttr;
+    /** The attribute for the start of the frame being traced. */
+    private final Attribute<FrameTracer.FrameStart> frameStartAttr;
+
+    /** Whether messages are decoded as flyweight views over the input. */
+    @Setter
+    private volatile boolean flyweight;
+    /** The delta encoding of successive messages, may be {@code null}. */
+    @Setter
+    private volatile DeltaEncoding deltaEncoding;
+    /** The guard over frames waiting for data, may be {@code null}. */
+    @Setter
+    private volatile PendingFrameGuard pendingFrameGuard;
+    /** The tracer of the latency of frames, may be {@code null}. */
+    @Setter
+    private volatile FrameTracer frameTracer;
+    /** Whether to drop the fields not declared for the message type. */
+    private boolean discardUnknownFields;
+    /** The numbers of the fields to parse, {@code null} for all fields. */
+    private int[] fieldProjection;
+    /** The filter of the fields to parse, may be {@code null}. */
+    private volatile FieldFilter fieldFilter;
 
     /**
      * A Protocol Buffers decoder, with (optional) registered extensions.
@@ -81,6 +126,38 @@ abstract class AbstractProtobufDecoder extends AbstractTransformer<Buffer, Messa
         this.prototype = prototype;
         this.extensionRegistry = extensionRegistry;
         messageLengthAttr = attributeBuilder.createAttribute(MESSAGE_LENGTH_ATTR);
+        flyweightAttr = attributeBuilder.createAttribute(FLYWEIGHT_ATTR);
+        deltaStateAttr = attributeBuilder.createAttribute(DELTA_STATE_ATTR);
+        pendingFrameAttr = attributeBuilder.createAttribute(PENDING_FRAME_ATTR);
+        frameStartAttr = attributeBuilder.createAttribute(FRAME_START_ATTR);
+    }
+
+    /**
+     * Sets whether fields that are not declared for the message type are
+     * dropped before parsing, rather than retained in the unknown fields of
+     * the message and its nested messages. Only full {@code Message} types
+     * retain unknown fields.
+     *
+     * @param discardUnknownFields {@code true} to drop unknown fields.
+     */
+    public synchronized void setDiscardUnknownFields(final boolean discardUnknownFields) {
+        this.discardUnknownFields = discardUnknownFields;
+        fieldFilter = FieldFilter.newInstance(prototype, discardUnknownFields,
+                extensionRegistry != null, fieldProjection);
+    }
+
+    /**
+     * Sets the top-level fields that are parsed, all of the other fields are
+     * skipped at the wire level. The parsed messages may be missing required
+     * fields.
+     *
+     * @param fieldNumbers The numbers of the fields to parse, or {@code null}
+     *                     to parse all of the fields.
+     */
+    public synchronized void setFieldProjection(final int... fieldNumbers) {
+        fieldProjection = (fieldNumbers == null) ? null : fieldNumbers.clone();
+        fieldFilter = FieldFilter.newInstance(prototype, discardUnknownFields,
+                extensionRegistry != null, fieldProjection);
     }
 
     /**
@@ -93,64 +170,247 @@ abstract class AbstractProtobufDecoder extends AbstractTransformer<Buffer, Messa
     public abstract int readHeader(final Buffer input)
             throws IOException;
 
+    /**
+     * Whether the whole header is available in the supplied {@code input}, so
+     * it can be read without waiting for more data.
+     *
+     * @param input The input buffer to check for the header.
+     * @return {@code true} if the header can be read.
+     */
+    public abstract boolean isHeaderComplete(final Buffer input);
+
     /** {@inheritDoc} */
     @Override
     protected final TransformationResult<Buffer, MessageLite> transformImpl(
             final AttributeStorage storage, final @NonNull Buffer input)
             throws TransformationException {
-        log.debug("inputRemaining={}", input.remaining());
+        final boolean debug = log.isDebugEnabled();
+        if (debug) {
+            log.debug("inputRemaining={}", input.remaining());
+        }
+        final FrameTracer frameTracer = ((storage instanceof DetachedAttributeStorage)
+                && !((DetachedAttributeStorage) storage).isTraced()) ? null : this.frameTracer;
 
         Integer messageLength = messageLengthAttr.get(storage);
         if (messageLength == null) {
+            if (!isHeaderComplete(input)) {
+                return TransformationResult.createIncompletedResult(input);
+            }
             try {
                 messageLength = readHeader(input);
-                log.debug("messageLength={}", messageLength);
                 messageLengthAttr.set(storage, messageLength);
+                if (frameTracer != null) {
+                    frameStart(storage).headerNanos = System.nanoTime();
+                }
             } catch (final IOException e) {
                 final String msg = "Error finding varint32 header size.";
                 log.warn(msg, e);
                 return createErrorResult(IO_HEADER_ENCODING_ERROR, msg);
             }
-            log.debug("inputRemaining={}", input.remaining());
+            if (debug) {
+                log.debug("messageLength={}, inputRemaining={}",
+                        messageLength, input.remaining());
+            }
         }
 
         if (input.remaining() < messageLength) {
+            final PendingFrameGuard pendingFrameGuard = this.pendingFrameGuard;
+            if (pendingFrameGuard != null) {
+                PendingFrameGuard.PendingFrame frame = pendingFrameAttr.get(storage);
+                if (frame == null) {
+                    frame = pendingFrameGuard.start(storage);
+                    pendingFrameAttr.set(storage, frame);
+                }
+                frame.update(input.remaining());
+            }
             return TransformationResult.createIncompletedResult(input);
         }
+        releasePendingFrame(storage);
 
+        final int pos = input.position();
+        final long parseStart = (frameTracer != null) ? System.nanoTime() : 0;
         final MessageLite message;
         try {
-            final byte[] buf = input.array();
-            final int pos = input.position();
-
-            if (extensionRegistry != null) {
-                if (PROTOBUF_PARSER) {
-                    message = prototype.getParserForType()
-                            .parseFrom(buf, pos, messageLength, extensionRegistry);
-                } else {
-                    message = prototype.newBuilderForType()
-                            .mergeFrom(buf, pos, messageLength, extensionRegistry)
-                            .build();
-                }
-            } else {
-                if (PROTOBUF_PARSER) {
-                    message = prototype.getParserForType()
-                            .parseFrom(buf, pos, messageLength);
-                } else {
-                    message = prototype.newBuilderForType()
-                            .mergeFrom(buf, pos, messageLength).build();
-                }
-            }
-        } catch (final InvalidProtocolBufferException e) {
+            message = decode(storage, input, pos, messageLength);
+        } catch (final IOException e) {
             final String msg = "Error decoding protobuf message from input stream.";
             log.warn(msg, e);
             return createErrorResult(IO_PROTOBUF_PARSE_ERROR, msg);
+        } finally {
+            messageLengthAttr.remove(storage);
+        }
+        input.position(pos + messageLength);
+        if (frameTracer != null) {
+            trace(frameTracer, storage, messageLength, parseStart);
+        }
+        if (debug) {
+            log.debug("inputRemaining={}", input.remaining());
         }
-        log.debug("inputRemaining={}", input.remaining());
 
         return TransformationResult.createCompletedResult(message, input);
     }
 
+    /**
+     * Decodes the message of {@code length} bytes stored at the
+     * {@code offset} of the {@code input} buffer, without moving the position
+     * of the buffer.
+     *
+     * @param storage The attribute storage of the connection.
+     * @param input The input buffer containing the message.
+     * @param offset The position of the message in the buffer.
+     * @param length The size of the message.
+     * @return The decoded message.
+     * @throws IOException If the message could not be decoded.
+     */
+    MessageLite decode(
+            final AttributeStorage storage, final Buffer input,
+            final int offset, final int length)
+            throws IOException {
+        final DeltaEncoding deltaEncoding = this.deltaEncoding;
+        if (deltaEncoding != null) {
+            final byte[] payload = new byte[length];
+            for (int i = 0; i < length; i++) {
+                payload[i] = input.get(offset + i);
+            }
+
+            final byte[] message = deltaEncoding.decode(deltaState(storage), payload);
+            return parse(storage,
+                    Buffers.wrap(obtainMemoryManager(storage), message), 0, message.length);
+        }
+        return parse(storage, input, offset, length);
+    }
+
+    /**
+     * Parses the message of {@code length} bytes stored at the {@code offset}
+     * of the {@code input} buffer, or positions a flyweight view over it.
+     */
+    private MessageLite parse(
+            final AttributeStorage storage, final Buffer input,
+            final int offset, final int length)
+            throws IOException {
+        if (flyweight) {
+            ProtobufFlyweight view = flyweightAttr.get(storage);
+            if (view == null) {
+                view = new ProtobufFlyweight(prototype);
+                flyweightAttr.set(storage, view);
+            }
+            view.wrap(input, offset, length);
+            return view;
+        }
+
+        CodedInputStream codedInput;
+        if (input.hasArray()) {
+            codedInput = CodedInputStream.newInstance(
+                    input.array(), input.arrayOffset() + offset, length);
+        } else {
+            codedInput = CodedInputStream.newInstance(
+                    new BufferInputStream(input, offset, offset + length));
+        }
+
+        final FieldFilter fieldFilter = this.fieldFilter;
+        if (fieldFilter != null) {
+            final byte[] filtered = new byte[length];
+            final int filteredLength = fieldFilter.filter(codedInput, filtered);
+            codedInput = CodedInputStream.newInstance(filtered, 0, filteredLength);
+
+            if (fieldFilter.isPartial()) {
+                return parsePartial(codedInput);
+            }
+        }
+
+        final MessageLite message;
+        if (extensionRegistry != null) {
+            if (PROTOBUF_PARSER) {
+                message = prototype.getParserForType()
+                        .parseFrom(codedInput, extensionRegistry);
+            } else {
+                message = prototype.newBuilderForType()
+                        .mergeFrom(codedInput, extensionRegistry).build();
+            }
+        } else {
+            if (PROTOBUF_PARSER) {
+                message = prototype.getParserForType().parseFrom(codedInput);
+            } else {
+                message = prototype.newBuilderForType()
+                        .mergeFrom(codedInput).build();
+            }
+        }
+        codedInput.checkLastTagWas(0);
+
+        return message;
+    }
+
+    /**
+     * Parses a message that may be missing required fields.
+     */
+    private MessageLite parsePartial(final CodedInputStream codedInput)
+            throws IOException {
+        final ExtensionRegistryLite extensionRegistry = (this.extensionRegistry != null)
+                ? this.extensionRegistry
+                : ExtensionRegistryLite.getEmptyRegistry();
+
+        final MessageLite message;
+        if (PROTOBUF_PARSER) {
+            message = prototype.getParserForType()
+                    .parsePartialFrom(codedInput, extensionRegistry);
+        } else {
+            message = prototype.newBuilderForType()
+                    .mergeFrom(codedInput, extensionRegistry).buildPartial();
+        }
+        codedInput.checkLastTagWas(0);
+
+        return message;
+    }
+
+    /**
+     * Stops tracking the pending frame of the connection, if there is one.
+     *
+     * @param storage The attribute storage of the connection.
+     */
+    void releasePendingFrame(final AttributeStorage storage) {
+        final PendingFrameGuard.PendingFrame frame = pendingFrameAttr.remove(storage);
+        if (frame != null) {
+            frame.release();
+        }
+    }
+
+    /**
+     * Records the latency of the frame that was decoded, unless its header was
+     * read before the tracer was set.
+     */
+    private void trace(
+            final FrameTracer frameTracer, final AttributeStorage storage,
+            final int messageLength, final long parseStart) {
+        final long end = System.nanoTime();
+        final FrameTracer.FrameStart frameStart = frameStart(storage);
+        final long headerNanos = frameStart.headerNanos;
+        frameStart.headerNanos = 0;
+        if (headerNanos != 0) {
+            frameTracer.record(storage, prototype.getClass().getName(),
+                    messageLength, end - headerNanos, end - parseStart);
+        }
+    }
+
+    /** The start of the frame being traced on the connection. */
+    private FrameTracer.FrameStart frameStart(final AttributeStorage storage) {
+        FrameTracer.FrameStart frameStart = frameStartAttr.get(storage);
+        if (frameStart == null) {
+            frameStart = new FrameTracer.FrameStart();
+            frameStartAttr.set(storage, frameStart);
+        }
+        return frameStart;
+    }
+
+    /** The previous messages received on the connection. */
+    private DeltaEncoding.State deltaState(final AttributeStorage storage) {
+        DeltaEncoding.State state = deltaStateAttr.get(storage);
+        if (state == null) {
+            state = new DeltaEncoding.State();
+            deltaStateAttr.set(storage, state);
+        }
+        return state;
+    }
+
     /** {@inheritDoc} */
     @Override
     public String getName() {
@@ -15,18 +15,22 @@
  */
 package me.cmoz.grizzly.protobuf;
 
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.MessageLite;
 import org.glassfish.grizzly.AbstractTransformer;
 import org.glassfish.grizzly.Buffer;
 import org.glassfish.grizzly.TransformationException;
 import org.glassfish.grizzly.TransformationResult;
+import org.glassfish.grizzly.attributes.Attribute;
 import org.glassfish.grizzly.attributes.AttributeStorage;
 import org.glassfish.grizzly.memory.MemoryManager;
 import org.glassfish.grizzly.utils.BufferOutputStream;
 
 import java.io.IOException;
 
+import lombok.Getter;
 import lombok.NonNull;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 import static org.glassfish.grizzly.TransformationResult.createCompletedResult;
@@ -40,6 +44,30 @@ abstract class AbstractProtobufEncoder extends AbstractTransformer<MessageLite,
 
     /** The error code for a failed write to the output stream. */
     public static final int IO_WRITE_ERROR = 0;
+    /** The name of the encoder attribute for the previous messages sent. */
+    public static final String DELTA_STATE_ATTR =
+            "grizzly-protobuf-delta-sent";
+
+    /** The attribute for the previous messages sent. */
+    private final Attribute<DeltaEncoding.State> deltaStateAttr =
+            attributeBuilder.createAttribute(DELTA_STATE_ATTR);
+
+    /** The default size of the chunks a large message is streamed in. */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /** The delta encoding of successive messages, may be {@code null}. */
+    @Setter
+    private volatile DeltaEncoding deltaEncoding;
+    /**
+     * The size from which a message is streamed in chunks, or {@code 0} to
+     * never stream messages. Messages are not streamed by default.
+     */
+    @Getter
+    @Setter
+    private volatile int streamingThreshold;
+    /** The size of the chunks a large message is streamed in. */
+    @Getter
+    private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
 
     /**
      * Writes a header to the supplied {@code outputStream}.
@@ -55,27 +83,173 @@ abstract class AbstractProtobufEncoder extends AbstractTransformer<MessageLite,
             final BufferOutputStream outputStream, final int messageLength)
             throws IOException;
 
+    /**
+     * The length of the header for a message of the supplied
+     * {@code messageLength}.
+     *
+     * @param messageLength The length of the message to write.
+     * @return The length of the header in bytes.
+     */
+    public abstract int getHeaderLength(final int messageLength);
+
+    /**
+     * Sets the size of the chunks a large message is streamed in.
+     *
+     * @param chunkSize The chunk size in bytes.
+     */
+    public void setChunkSize(final int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("'chunkSize' must be positive.");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Whether successive messages are delta encoded against the previous
+     * messages sent on each connection.
+     *
+     * @return {@code true} if delta encoding is enabled.
+     */
+    boolean isDeltaEncoding() {
+        return deltaEncoding != null;
+    }
+
+    /**
+     * Whether the supplied {@code message} should be streamed in chunks
+     * rather than encoded into a single buffer.
+     *
+     * @param messageLength The serialized size of the message.
+     * @return {@code true} if the message should be streamed.
+     */
+    boolean isStreamed(final int messageLength) {
+        final int threshold = streamingThreshold;
+        return (threshold > 0) && (messageLength >= threshold) && (deltaEncoding == null);
+    }
+
     /** {@inheritDoc} */
     @Override
     protected final TransformationResult<MessageLite, Buffer> transformImpl(
             final AttributeStorage storage, final @NonNull MessageLite input)
             throws TransformationException {
         final MemoryManager memoryManager = obtainMemoryManager(storage);
-        final BufferOutputStream outputStream = new BufferOutputStream(memoryManager);
+        final DeltaEncoding deltaEncoding = this.deltaEncoding;
 
-        final byte[] encodedMessage = input.toByteArray();
+        final Buffer output;
         try {
-            writeHeader(outputStream, encodedMessage.length);
-
-            outputStream.write(encodedMessage);
-            outputStream.close();
+            if (deltaEncoding != null) {
+                final byte[] payload = deltaEncoding.encode(
+                        deltaState(storage), input.toByteArray());
+                output = frame(memoryManager, payload);
+            } else {
+                output = encode(memoryManager, input);
+            }
         } catch (final IOException e) {
             final String msg = "Error writing protobuf message to output stream.";
             log.warn(msg, e);
             return createErrorResult(IO_WRITE_ERROR, msg);
         }
 
-        return createCompletedResult(outputStream.getBuffer().flip(), null);
+        return createCompletedResult(output, null);
+    }
+
+    /**
+     * Serializes the supplied {@code message} and frames it with a header into
+     * a new buffer, ready to be written.
+     *
+     * @param memoryManager The memory manager to allocate the buffer from.
+     * @param message The protobuf message to encode.
+     * @return The flipped buffer containing the header and message.
+     * @throws IOException If there was a problem writing the header.
+     */
+    Buffer encode(final MemoryManager memoryManager, final MessageLite message)
+            throws IOException {
+        final int messageLength = message.getSerializedSize();
+        final BufferOutputStream outputStream = new BufferOutputStream(memoryManager,
+                memoryManager.allocate(getHeaderLength(messageLength) + messageLength));
+
+        writeHeader(outputStream, messageLength);
+
+        final Buffer buffer = outputStream.getBuffer();
+        if (buffer.hasArray() && buffer.remaining() >= messageLength) {
+            // serialize straight into the buffer, without an intermediate array
+            final int pos = buffer.position();
+            final CodedOutputStream codedOutputStream = CodedOutputStream.newInstance(
+                    buffer.array(), buffer.arrayOffset() + pos, messageLength);
+            message.writeTo(codedOutputStream);
+            codedOutputStream.checkNoSpaceLeft();
+            buffer.position(pos + messageLength);
+        } else {
+            outputStream.write(message.toByteArray());
+        }
+        outputStream.close();
+
+        return outputStream.getBuffer().flip();
+    }
+
+    /**
+     * Serializes the supplied {@code message} with a header into the chunks of
+     * the {@code outputStream}, each chunk is handed on as soon as it is full
+     * so the whole message is never held in memory at once.
+     *
+     * @param message The protobuf message to encode.
+     * @param messageLength The serialized size of the message.
+     * @param outputStream The stream of chunks to write to, it is closed once
+     *                     the message has been written.
+     * @throws IOException If there was a problem writing the message.
+     */
+    void encodeChunked(
+            final MessageLite message, final int messageLength,
+            final ChunkedBufferOutputStream outputStream)
+            throws IOException {
+        final BufferOutputStream headerStream = new BufferOutputStream(
+                outputStream.getMemoryManager(),
+                outputStream.getMemoryManager().allocate(getHeaderLength(messageLength)));
+        writeHeader(headerStream, messageLength);
+        headerStream.close();
+
+        final Buffer header = headerStream.getBuffer().flip();
+        while (header.hasRemaining()) {
+            outputStream.write(header.get());
+        }
+        header.tryDispose();
+
+        final CodedOutputStream codedOutputStream = CodedOutputStream.newInstance(outputStream);
+        message.writeTo(codedOutputStream);
+        codedOutputStream.flush();
+        outputStream.close();
+    }
+
+    /**
+     * Frames the supplied {@code encodedMessage} with a header into a new
+     * buffer, ready to be written.
+     *
+     * @param memoryManager The memory manager to allocate the buffer from.
+     * @param encodedMessage The serialized message.
+     * @return The flipped buffer containing the header and message.
+     * @throws IOException If there was a problem writing the header.
+     */
+    Buffer frame(final MemoryManager memoryManager, final byte[] encodedMessage)
+            throws IOException {
+        final BufferOutputStream outputStream = new BufferOutputStream(memoryManager,
+                memoryManager.allocate(
+                        getHeaderLength(encodedMessage.length) + encodedMessage.length));
+
+        writeHeader(outputStream, encodedMessage.length);
+
+        outputStream.write(encodedMessage);
+        outputStream.close();
+
+        return outputStream.getBuffer().flip();
+    }
+
+    /** The previous messages sent on the connection. */
+    private DeltaEncoding.State deltaState(final AttributeStorage storage) {
+        DeltaEncoding.State state = deltaStateAttr.get(storage);
+        if (state == null) {
+            state = new DeltaEncoding.State();
+            deltaStateAttr.set(storage, state);
+        }
+        return state;
     }
 
     /** {@inheritDoc} */
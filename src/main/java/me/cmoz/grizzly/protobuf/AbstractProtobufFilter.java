@@ -0,0 +1,565 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import com.google.protobuf.MessageLite;
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.CompletionHandler;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.EmptyCompletionHandler;
+import org.glassfish.grizzly.TransformationResult;
+import org.glassfish.grizzly.WriteResult;
+import org.glassfish.grizzly.filterchain.AbstractCodecFilter;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.glassfish.grizzly.memory.MemoryManager;
+import org.glassfish.grizzly.threadpool.Threads;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A filter for Google's Protocol Buffers serialization format which pairs a
+ * protobuf decoder with the encoder for the same header format.
+ */
+@Slf4j
+abstract class AbstractProtobufFilter extends AbstractCodecFilter<Buffer, MessageLite> {
+
+    /** The number of chunks of a streamed message that may be in flight. */
+    private static final int MAX_PENDING_CHUNKS = 2;
+
+    /** The decoder for inbound protobuf messages. */
+    @Getter(AccessLevel.PACKAGE)
+    private final AbstractProtobufDecoder protobufDecoder;
+    /** The encoder for outbound protobuf messages. */
+    @Getter(AccessLevel.PACKAGE)
+    private final AbstractProtobufEncoder protobufEncoder;
+
+    /**
+     * A Protocol Buffers filter with the supplied {@code decoder} and
+     * {@code encoder}.
+     *
+     * @param decoder The decoder for inbound protobuf messages.
+     * @param encoder The encoder for outbound protobuf messages.
+     */
+    AbstractProtobufFilter(
+            final @NonNull AbstractProtobufDecoder decoder,
+            final @NonNull AbstractProtobufEncoder encoder) {
+        super(decoder, encoder);
+        protobufDecoder = decoder;
+        protobufEncoder = encoder;
+    }
+
+    /**
+     * Sets whether inbound messages are passed on as {@link ProtobufFlyweight}
+     * views over the bytes of each frame instead of being parsed. A single
+     * view is reused for every message of a connection.
+     *
+     * @param flyweight {@code true} to decode messages as flyweight views.
+     */
+    public void setFlyweightDecoding(final boolean flyweight) {
+        protobufDecoder.setFlyweight(flyweight);
+    }
+
+    /**
+     * Sets whether fields that are not declared for the message type, e.g.
+     * fields added by peers with a newer schema, are dropped before parsing
+     * instead of being retained in the decoded messages.
+     *
+     * @param discardUnknownFields {@code true} to drop unknown fields.
+     */
+    public void setDiscardUnknownFields(final boolean discardUnknownFields) {
+        protobufDecoder.setDiscardUnknownFields(discardUnknownFields);
+    }
+
+    /**
+     * Sets the top-level fields of inbound messages that are parsed, all of
+     * the other fields are skipped without being parsed. The decoded messages
+     * are built partially, they may be missing required fields.
+     *
+     * @param fieldNumbers The numbers of the fields to parse, or {@code null}
+     *                     to parse all of the fields.
+     */
+    public void setFieldProjection(final int... fieldNumbers) {
+        protobufDecoder.setFieldProjection(fieldNumbers);
+    }
+
+    /**
+     * Enables delta encoding of successive messages on each connection, only
+     * the fields that changed since the previous message are sent. Both peers
+     * must enable delta encoding with the same settings.
+     * </p>
+     * <b>Note</b> Writes to a connection must not be made concurrently, the
+     * messages must be encoded in the order they are sent.
+     *
+     * @param keyframeInterval The maximum number of deltas sent between
+     *                         messages sent in full.
+     * @param keyFieldNumbers The numbers of the fields that identify separate
+     *                        message streams on a connection, may be empty.
+     */
+    public void setDeltaEncoding(
+            final int keyframeInterval, final @NonNull int... keyFieldNumbers) {
+        final DeltaEncoding deltaEncoding =
+                new DeltaEncoding(keyframeInterval, keyFieldNumbers);
+        protobufDecoder.setDeltaEncoding(deltaEncoding);
+        protobufEncoder.setDeltaEncoding(deltaEncoding);
+    }
+
+    /**
+     * Sets the size from which outbound messages are serialized in chunks that
+     * are passed to the transport as they fill, instead of into a single
+     * buffer. This bounds the memory used by a large message to a few chunks.
+     * </p>
+     * The serialization of a streamed message waits for the earlier chunks to
+     * be written, so the write blocks the calling thread until all but the
+     * last chunks have been written. A non-blocking write from a Grizzly
+     * service thread cannot wait, and is encoded into a single buffer.
+     * </p>
+     * <b>Note</b> Messages are not streamed unless a threshold is set.
+     *
+     * @param streamingThreshold The message size in bytes, or {@code 0} to
+     *                           never stream messages.
+     * @param chunkSize The size of the chunks in bytes.
+     */
+    public void setStreaming(final int streamingThreshold, final int chunkSize) {
+        if (streamingThreshold < 0) {
+            throw new IllegalArgumentException("'streamingThreshold' cannot be negative.");
+        }
+        protobufEncoder.setChunkSize(chunkSize);
+        protobufEncoder.setStreamingThreshold(streamingThreshold);
+    }
+
+    /**
+     * Sets the guard that closes connections whose inbound frames stall, or
+     * that buffer too much data for incomplete frames.
+     *
+     * @param pendingFrameGuard The guard over incomplete frames, or
+     *                          {@code null} to not guard them.
+     * @see PendingFrameGuard
+     */
+    public void setPendingFrameGuard(final PendingFrameGuard pendingFrameGuard) {
+        protobufDecoder.setPendingFrameGuard(pendingFrameGuard);
+    }
+
+    /**
+     * Sets the tracer that records the latency of a sample of the inbound
+     * frames, and of every frame slower than its threshold.
+     *
+     * @param frameTracer The tracer of inbound frames, or {@code null} to not
+     *                    trace them.
+     * @see FrameTracer
+     */
+    public void setFrameTracer(final FrameTracer frameTracer) {
+        protobufDecoder.setFrameTracer(frameTracer);
+    }
+
+    /**
+     * Runs the supplied {@code samples} through the encoder and decoder of the
+     * filter, so that the message classes are loaded and the codec is compiled
+     * before the first connection. The state of the codec is kept apart from
+     * the connections, and the frames are not recorded by the frame tracer.
+     *
+     * @param iterations The number of times each sample is encoded and
+     *                   decoded.
+     * @param samples The messages to warm up with, if there are none a sample
+     *                is synthesized from the message type of the filter.
+     * @return The time the warm-up took in milliseconds.
+     * @throws IllegalArgumentException If there are no samples with all their
+     *                                  required fields, or a sample cannot be
+     *                                  encoded and decoded.
+     */
+    @SuppressWarnings("unchecked")
+    public long warmUp(final int iterations, final @NonNull MessageLite... samples) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("'iterations' must be positive.");
+        }
+        final List<MessageLite> messages = new ArrayList<MessageLite>();
+        for (final MessageLite sample : (samples.length > 0)
+                ? samples
+                : new MessageLite[] { WarmUpSamples.synthesize(protobufDecoder.getPrototype()) }) {
+            // a sample missing required fields would fail to decode on every iteration
+            if (sample.isInitialized()) {
+                messages.add(sample);
+            } else {
+                log.warn("Skipping a warm-up sample missing required fields, type={}",
+                        sample.getClass().getName());
+            }
+        }
+        if (messages.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "There are no warm-up samples with all their required fields.");
+        }
+        final DetachedAttributeStorage storage = new DetachedAttributeStorage(false);
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (final MessageLite message : messages) {
+                final TransformationResult<MessageLite, Buffer> encoded =
+                        protobufEncoder.transform(storage, message);
+                try {
+                    if (encoded.getStatus() != TransformationResult.Status.COMPLETE) {
+                        throw new IllegalArgumentException(
+                                "Warm-up sample could not be encoded: "
+                                        + encoded.getErrorDescription());
+                    }
+                    final Buffer frame = encoded.getMessage();
+                    final TransformationResult<Buffer, MessageLite> decoded =
+                            protobufDecoder.transform(storage, frame);
+                    try {
+                        if (decoded.getStatus() != TransformationResult.Status.COMPLETE) {
+                            throw new IllegalArgumentException(
+                                    "Warm-up sample could not be decoded: "
+                                            + decoded.getErrorDescription());
+                        }
+                    } finally {
+                        decoded.recycle();
+                        frame.tryDispose();
+                    }
+                } finally {
+                    encoded.recycle();
+                }
+            }
+        }
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.info("Warmed up the codec in {}ms, iterations={}, samples={}",
+                elapsed, iterations, messages.size());
+
+        return elapsed;
+    }
+
+    /**
+     * Writes the supplied {@code message} to all of the {@code connections}.
+     * The message is serialized and framed once into a shared buffer that is
+     * released when the last write has completed.
+     *
+     * @param message The protobuf message to broadcast.
+     * @param connections The connections to write the message to.
+     * @return The number of connections the message was queued on.
+     * @throws IOException If the message could not be encoded.
+     * @see #broadcast(MessageLite, Iterable, MemoryManager)
+     */
+    public int broadcast(
+            final @NonNull MessageLite message,
+            final @NonNull Iterable<? extends Connection> connections)
+            throws IOException {
+        return broadcast(message, connections, MemoryManager.DEFAULT_MEMORY_MANAGER);
+    }
+
+    /**
+     * Writes the supplied {@code message} to all of the {@code connections}.
+     * The message is serialized and framed once into a shared buffer, each
+     * connection is given a read-only view of that buffer and the buffer is
+     * released when the last write has completed.
+     * </p>
+     * <b>Note</b> The connections must have this filter in their filter chain
+     * so the frame is passed through to the transport unchanged. A message
+     * cannot be broadcast with delta encoding, as the deltas of each
+     * connection are against the previous messages sent on that connection.
+     *
+     * @param message The protobuf message to broadcast.
+     * @param connections The connections to write the message to.
+     * @param memoryManager The memory manager to allocate the shared buffer
+     *                      from.
+     * @return The number of connections the message was queued on.
+     * @throws IOException If the message could not be encoded.
+     * @throws IllegalStateException If delta encoding is enabled.
+     */
+    @SuppressWarnings("unchecked")
+    public int broadcast(
+            final @NonNull MessageLite message,
+            final @NonNull Iterable<? extends Connection> connections,
+            final @NonNull MemoryManager memoryManager)
+            throws IOException {
+        if (protobufEncoder.isDeltaEncoding()) {
+            throw new IllegalStateException(
+                    "Messages cannot be broadcast with delta encoding enabled.");
+        }
+        final Buffer frame = protobufEncoder.encode(memoryManager, message);
+        final SharedFrameReleaser releaser = new SharedFrameReleaser(frame);
+
+        int queued = 0;
+        try {
+            for (final Connection connection : connections) {
+                if (!connection.isOpen()) {
+                    continue;
+                }
+
+                final Buffer view = frame.asReadOnlyBuffer();
+                view.allowBufferDispose(false);
+
+                releaser.retain();
+                try {
+                    connection.write(view, releaser);
+                    queued++;
+                } catch (final RuntimeException e) {
+                    log.warn("Error queuing broadcast frame on connection.", e);
+                    releaser.release();
+                }
+            }
+        } finally {
+            releaser.release();
+        }
+        log.debug("broadcastQueued={}", queued);
+
+        return queued;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public NextAction handleWrite(final FilterChainContext ctx) throws IOException {
+        final Object message = ctx.getMessage();
+        if (message instanceof Buffer) {
+            // already framed, i.e. a broadcast frame
+            return ctx.getInvokeAction();
+        }
+        if (message instanceof MessageLite) {
+            final MessageLite messageLite = (MessageLite) message;
+            final int messageLength = messageLite.getSerializedSize();
+            if (protobufEncoder.isStreamed(messageLength)
+                    && (ctx.getTransportContext().isBlocking() || !Threads.isService())) {
+                writeChunked(ctx, messageLite, messageLength);
+                return ctx.getStopAction();
+            }
+        }
+        return super.handleWrite(ctx);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public NextAction handleClose(final FilterChainContext ctx) throws IOException {
+        protobufDecoder.releasePendingFrame(ctx.getConnection());
+        return super.handleClose(ctx);
+    }
+
+    /**
+     * Writes a large message as a sequence of chunks, each chunk is passed on
+     * to the transport as soon as it has been filled and no more than
+     * {@link #MAX_PENDING_CHUNKS} are in flight. The completion handler of the
+     * write is notified when the last chunk has been written, or when any
+     * chunk fails in which case the connection is closed.
+     */
+    @SuppressWarnings("unchecked")
+    private void writeChunked(
+            final FilterChainContext ctx, final MessageLite message,
+            final int messageLength) {
+        final FilterChainContext.TransportContext transportContext =
+                ctx.getTransportContext();
+        final boolean blocking = transportContext.isBlocking();
+        final Connection connection = ctx.getConnection();
+        final ChunkedWrite chunkedWrite = new ChunkedWrite(connection,
+                transportContext.getCompletionHandler(),
+                connection.getTransport().getWriteTimeout(TimeUnit.MILLISECONDS));
+
+        final ChunkedBufferOutputStream outputStream = new ChunkedBufferOutputStream(
+                ctx.getMemoryManager(), protobufEncoder.getChunkSize()) {
+            @Override
+            protected void onChunk(final Buffer chunk, final boolean last)
+                    throws IOException {
+                try {
+                    chunkedWrite.acquire();
+                } catch (final IOException e) {
+                    chunk.tryDispose();
+                    throw e;
+                }
+                ctx.write(chunk, chunkedWrite.handler(last), blocking);
+            }
+        };
+        log.debug("streamedMessageLength={}", messageLength);
+        try {
+            protobufEncoder.encodeChunked(message, messageLength, outputStream);
+        } catch (final IOException e) {
+            chunkedWrite.fail(e);
+        }
+    }
+
+    /**
+     * Paces the chunks of a streamed message, and notifies the completion
+     * handler of the write once, when the last chunk has been written or any
+     * chunk has failed.
+     */
+    private static final class ChunkedWrite {
+
+        /** The connection the message is written to. */
+        private final Connection connection;
+        /** The completion handler of the write, may be {@code null}. */
+        private final CompletionHandler<WriteResult> completionHandler;
+        /** The time to wait for a chunk to be written, or a negative value to wait indefinitely. */
+        private final long writeTimeoutMillis;
+        /** The chunks that may still be put in flight. */
+        private final Semaphore permits = new Semaphore(MAX_PENDING_CHUNKS);
+        /** Whether the completion handler has been notified. */
+        private final AtomicBoolean done = new AtomicBoolean();
+        /** The failure of the write, {@code null} while it has not failed. */
+        private volatile Throwable failure;
+
+        /** The handler of each chunk before the last. */
+        private final CompletionHandler<WriteResult> chunkHandler =
+                new EmptyCompletionHandler<WriteResult>() {
+                    @Override
+                    public void completed(final WriteResult result) {
+                        permits.release();
+                    }
+
+                    @Override
+                    public void failed(final Throwable throwable) {
+                        fail(throwable);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        fail(new CancellationException("Chunk write was cancelled."));
+                    }
+                };
+
+        /** The handler of the last chunk. */
+        private final CompletionHandler<WriteResult> lastChunkHandler =
+                new EmptyCompletionHandler<WriteResult>() {
+                    @Override
+                    public void completed(final WriteResult result) {
+                        permits.release();
+                        if (done.compareAndSet(false, true) && (completionHandler != null)) {
+                            completionHandler.completed(result);
+                        }
+                    }
+
+                    @Override
+                    public void failed(final Throwable throwable) {
+                        fail(throwable);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        fail(new CancellationException("Chunk write was cancelled."));
+                    }
+                };
+
+        ChunkedWrite(
+                final Connection connection,
+                final CompletionHandler<WriteResult> completionHandler,
+                final long writeTimeoutMillis) {
+            this.connection = connection;
+            this.completionHandler = completionHandler;
+            this.writeTimeoutMillis = writeTimeoutMillis;
+        }
+
+        CompletionHandler<WriteResult> handler(final boolean last) {
+            return last ? lastChunkHandler : chunkHandler;
+        }
+
+        /**
+         * Waits until another chunk may be put in flight.
+         *
+         * @throws IOException If the write has failed, or timed out.
+         */
+        void acquire() throws IOException {
+            try {
+                if (writeTimeoutMillis < 0) {
+                    permits.acquire();
+                } else if (!permits.tryAcquire(writeTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Timed out writing a chunk of a streamed message.");
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted writing a streamed message.");
+            }
+
+            final Throwable failure = this.failure;
+            if (failure != null) {
+                throw new IOException("Chunk of a streamed message failed.", failure);
+            }
+        }
+
+        /**
+         * Fails the write and closes the connection, so that no partial
+         * message is followed by more data.
+         *
+         * @param throwable The cause of the failure.
+         */
+        void fail(final Throwable throwable) {
+            if (failure == null) {
+                failure = throwable;
+            }
+            permits.release(MAX_PENDING_CHUNKS);
+            if (done.compareAndSet(false, true)) {
+                log.warn("Error writing streamed message, closing connection.", throwable);
+                connection.closeSilently();
+                if (completionHandler != null) {
+                    completionHandler.failed(throwable);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Disposes of a shared frame once every write of it has completed.
+     */
+    private static final class SharedFrameReleaser
+            extends EmptyCompletionHandler<WriteResult> {
+
+        /** The framed message shared by all the writes. */
+        private final Buffer frame;
+        /** The number of outstanding references to the frame. */
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        SharedFrameReleaser(final Buffer frame) {
+            this.frame = frame;
+        }
+
+        void retain() {
+            references.incrementAndGet();
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                frame.allowBufferDispose(true);
+                frame.tryDispose();
+            }
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void completed(final WriteResult result) {
+            release();
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void failed(final Throwable throwable) {
+            release();
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void cancelled() {
+            release();
+        }
+
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.memory.MemoryManager;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * An output stream that writes into fixed size buffers allocated from a
+ * {@link MemoryManager}, handing on each buffer as soon as it is full.
+ */
+abstract class ChunkedBufferOutputStream extends OutputStream {
+
+    /** The memory manager to allocate the chunks from. */
+    @Getter(AccessLevel.PACKAGE)
+    private final MemoryManager memoryManager;
+    /** The size of each chunk. */
+    private final int chunkSize;
+
+    /** The chunk being written to. */
+    private Buffer chunk;
+    /** Whether the stream has been closed. */
+    private boolean closed;
+
+    /**
+     * A stream of chunks of the supplied {@code chunkSize}.
+     *
+     * @param memoryManager The memory manager to allocate the chunks from.
+     * @param chunkSize The size of each chunk.
+     */
+    ChunkedBufferOutputStream(
+            final @NonNull MemoryManager memoryManager, final int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("'chunkSize' must be positive.");
+        }
+        this.memoryManager = memoryManager;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Hands on a flipped chunk of the stream.
+     *
+     * @param chunk The chunk, ready to be written.
+     * @param last Whether this is the last chunk of the stream.
+     * @throws IOException If the chunk could not be handed on.
+     */
+    protected abstract void onChunk(final Buffer chunk, final boolean last)
+            throws IOException;
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(final int b) throws IOException {
+        ensureCapacity();
+        chunk.put((byte) b);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ensureCapacity();
+            final int n = Math.min(len, chunk.remaining());
+            chunk.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (chunk == null) {
+            chunk = memoryManager.allocate(0);
+        }
+        emit(true);
+    }
+
+    /** Hands on the current chunk if it is full and allocates the next. */
+    private void ensureCapacity() throws IOException {
+        if (closed) {
+            throw new IOException("Stream has been closed.");
+        }
+        if (chunk != null && !chunk.hasRemaining()) {
+            emit(false);
+        }
+        if (chunk == null) {
+            chunk = memoryManager.allocate(chunkSize);
+        }
+    }
+
+    private void emit(final boolean last) throws IOException {
+        final Buffer full = chunk;
+        chunk = null;
+
+        full.flip();
+        full.allowBufferDispose(true);
+        onChunk(full, last);
+    }
+
+}
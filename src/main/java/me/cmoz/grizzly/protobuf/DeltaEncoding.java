@@ -0,0 +1,295 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Encodes successive messages as the difference to the previous message,
+ * compared field by field at the wire level so that it works for any
+ * {@code MessageLite} type.
+ * </p>
+ * A keyframe carries the whole message. A delta carries a bitmap of the
+ * fields of the previous message that were cleared, followed by the fields
+ * that changed. A keyframe is sent for the first message, after every
+ * {@code keyframeInterval} deltas and whenever the delta would not be smaller
+ * than the message. The fields of repeated fields are compared as a whole.
+ * </p>
+ * When key fields are configured a previous message is kept for each distinct
+ * value of the key fields, and the key fields are sent in every delta so the
+ * decoder can find its previous message. Up to {@code MAX_KEYS} keys are
+ * kept per connection, the least recently used key is dropped on both sides.
+ */
+@Slf4j
+final class DeltaEncoding {
+
+    /** The maximum number of previous messages kept per connection. */
+    static final int MAX_KEYS = 1024;
+
+    /** The kind of a payload that carries the whole message. */
+    private static final int KEYFRAME = 0;
+    /** The kind of a payload that carries the changes to a message. */
+    private static final int DELTA = 1;
+
+    /** The maximum number of deltas sent between keyframes. */
+    private final int keyframeInterval;
+    /** The numbers of the fields that identify a message stream. */
+    private final int[] keyFieldNumbers;
+
+    /**
+     * A delta encoding with the supplied {@code keyframeInterval}.
+     *
+     * @param keyframeInterval The maximum number of deltas sent between
+     *                         keyframes.
+     * @param keyFieldNumbers The numbers of the fields that identify a message
+     *                        stream, may be empty.
+     */
+    DeltaEncoding(final int keyframeInterval, final int... keyFieldNumbers) {
+        if (keyframeInterval < 1) {
+            throw new IllegalArgumentException("'keyframeInterval' must be positive.");
+        }
+        this.keyframeInterval = keyframeInterval;
+        this.keyFieldNumbers = keyFieldNumbers.clone();
+    }
+
+    /**
+     * Encodes the serialized {@code message} against the previous message
+     * with the same key.
+     *
+     * @param state The previous messages sent on the connection.
+     * @param message The serialized message to send.
+     * @return The keyframe or delta payload.
+     * @throws IOException If the message is malformed.
+     */
+    byte[] encode(final State state, final byte[] message) throws IOException {
+        final TreeMap<Integer, ByteString> fields = split(message, 0, message.length);
+        final ByteString key = key(fields);
+
+        synchronized (state) {
+            final Snapshot previous = state.get(key);
+            if (previous != null && previous.deltas < keyframeInterval) {
+                final byte[] delta = delta(previous.fields, fields);
+                if (delta.length < message.length) {
+                    state.put(key, new Snapshot(fields, previous.deltas + 1));
+                    log.debug("deltaLength={}, messageLength={}", delta.length, message.length);
+                    return delta;
+                }
+            }
+            state.put(key, new Snapshot(fields, 0));
+        }
+
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream(message.length + 1);
+        payload.write(KEYFRAME);
+        payload.write(message);
+        return payload.toByteArray();
+    }
+
+    /**
+     * Rebuilds the serialized message from a keyframe or delta
+     * {@code payload}.
+     *
+     * @param state The previous messages received on the connection.
+     * @param payload The keyframe or delta payload.
+     * @return The serialized message.
+     * @throws IOException If the payload is malformed or a delta arrives
+     *                     without a previous message.
+     */
+    byte[] decode(final State state, final byte[] payload) throws IOException {
+        final CodedInputStream input = CodedInputStream.newInstance(payload);
+        final int kind = input.readRawVarint32();
+
+        if (kind == KEYFRAME) {
+            final int offset = input.getTotalBytesRead();
+            final TreeMap<Integer, ByteString> fields =
+                    split(payload, offset, payload.length - offset);
+            synchronized (state) {
+                state.put(key(fields), new Snapshot(fields, 0));
+            }
+
+            final byte[] message = new byte[payload.length - offset];
+            System.arraycopy(payload, offset, message, 0, message.length);
+            return message;
+        }
+        if (kind != DELTA) {
+            throw new InvalidProtocolBufferException("Unknown delta payload kind " + kind + ".");
+        }
+
+        final byte[] cleared = input.readRawBytes(input.readRawVarint32());
+        final int offset = input.getTotalBytesRead();
+        final TreeMap<Integer, ByteString> changed =
+                split(payload, offset, payload.length - offset);
+        final ByteString key = key(changed);
+
+        final TreeMap<Integer, ByteString> fields;
+        synchronized (state) {
+            final Snapshot previous = state.get(key);
+            if (previous == null) {
+                throw new InvalidProtocolBufferException(
+                        "Delta payload received without a previous message.");
+            }
+
+            fields = new TreeMap<Integer, ByteString>();
+            int i = 0;
+            for (final Map.Entry<Integer, ByteString> field : previous.fields.entrySet()) {
+                if (!isSet(cleared, i++)) {
+                    fields.put(field.getKey(), field.getValue());
+                }
+            }
+            fields.putAll(changed);
+            state.put(key, new Snapshot(fields, previous.deltas + 1));
+        }
+
+        ByteString message = ByteString.EMPTY;
+        for (final ByteString field : fields.values()) {
+            message = message.concat(field);
+        }
+        return message.toByteArray();
+    }
+
+    /** Writes the delta payload between the previous and current fields. */
+    private byte[] delta(
+            final TreeMap<Integer, ByteString> previous,
+            final TreeMap<Integer, ByteString> current)
+            throws IOException {
+        final byte[] cleared = new byte[(previous.size() + 7) / 8];
+        int i = 0;
+        for (final Integer fieldNumber : previous.keySet()) {
+            if (!current.containsKey(fieldNumber)) {
+                cleared[i / 8] |= (byte) (1 << (i % 8));
+            }
+            i++;
+        }
+
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final CodedOutputStream output = CodedOutputStream.newInstance(payload);
+        output.writeRawVarint32(DELTA);
+        output.writeRawVarint32(cleared.length);
+        output.writeRawBytes(cleared);
+        for (final Map.Entry<Integer, ByteString> field : current.entrySet()) {
+            if (isKeyField(field.getKey())
+                    || !field.getValue().equals(previous.get(field.getKey()))) {
+                output.writeRawBytes(field.getValue());
+            }
+        }
+        output.flush();
+
+        return payload.toByteArray();
+    }
+
+    /** The key of a message, the concatenation of its key fields. */
+    private ByteString key(final TreeMap<Integer, ByteString> fields) {
+        ByteString key = ByteString.EMPTY;
+        for (final int fieldNumber : keyFieldNumbers) {
+            final ByteString field = fields.get(fieldNumber);
+            if (field != null) {
+                key = key.concat(field);
+            }
+        }
+        return key;
+    }
+
+    private boolean isKeyField(final int fieldNumber) {
+        for (final int keyFieldNumber : keyFieldNumbers) {
+            if (keyFieldNumber == fieldNumber) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSet(final byte[] bitmap, final int i) {
+        return (i / 8 < bitmap.length) && (bitmap[i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    /**
+     * Splits a serialized message into the encoded tags and values of its
+     * fields, grouped by field number.
+     */
+    private static TreeMap<Integer, ByteString> split(
+            final byte[] message, final int offset, final int length)
+            throws IOException {
+        final TreeMap<Integer, ByteString> fields = new TreeMap<Integer, ByteString>();
+        final CodedInputStream input = CodedInputStream.newInstance(message, offset, length);
+
+        int start = 0;
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (!input.skipField(tag)) {
+                throw new InvalidProtocolBufferException(
+                        "Protocol message end-group tag did not match expected tag.");
+            }
+            final int end = input.getTotalBytesRead();
+            final ByteString field = ByteString.copyFrom(message, offset + start, end - start);
+            final ByteString previous = fields.put(tag >>> 3, field);
+            if (previous != null) {
+                fields.put(tag >>> 3, previous.concat(field));
+            }
+            start = end;
+        }
+
+        return fields;
+    }
+
+    /**
+     * The previous message for each key of a connection, in least recently
+     * used order.
+     */
+    static final class State extends LinkedHashMap<ByteString, Snapshot> {
+
+        private static final long serialVersionUID = 1L;
+
+        State() {
+            super(16, 0.75f, true);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<ByteString, Snapshot> eldest) {
+            return size() > MAX_KEYS;
+        }
+
+    }
+
+    /**
+     * The fields of a previous message and the number of deltas since its
+     * last keyframe.
+     */
+    static final class Snapshot {
+
+        /** The encoded fields of the message, by field number. */
+        final TreeMap<Integer, ByteString> fields;
+        /** The number of deltas since the last keyframe. */
+        final int deltas;
+
+        Snapshot(final TreeMap<Integer, ByteString> fields, final int deltas) {
+            this.fields = fields;
+            this.deltas = deltas;
+        }
+
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.attributes.AttributeHolder;
+import org.glassfish.grizzly.attributes.AttributeStorage;
+import org.glassfish.grizzly.attributes.IndexedAttributeHolder;
+
+import lombok.Getter;
+
+/**
+ * The attributes of a codec that is used outside of a connection, it plays
+ * the part of the connection for the codec state.
+ */
+final class DetachedAttributeStorage implements AttributeStorage {
+
+    /** The attributes of the codec state. */
+    private final AttributeHolder attributes =
+            new IndexedAttributeHolder(Grizzly.DEFAULT_ATTRIBUTE_BUILDER);
+    /** Whether the frames decoded with the storage are traced. */
+    @Getter
+    private final boolean traced;
+
+    /**
+     * The attributes of a codec whose frames are traced.
+     */
+    DetachedAttributeStorage() {
+        this(true);
+    }
+
+    /**
+     * The attributes of a codec.
+     *
+     * @param traced Whether the frames decoded with the storage are recorded
+     *               by the frame tracer of the decoder.
+     */
+    DetachedAttributeStorage(final boolean traced) {
+        this.traced = traced;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public AttributeHolder getAttributes() {
+        return attributes;
+    }
+
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Copies the allowed fields of a serialized message at the wire level, the
+ * other fields are skipped without being parsed.
+ * </p>
+ * The allowed fields are either the fields declared for the message type,
+ * which drops the unknown fields of the message and of its nested messages,
+ * or a projection onto a declared set of top-level field numbers, or both.
+ * </p>
+ * <b>Note</b> The descriptor of the message type is only available for full
+ * {@link Message} types, the lite runtime already skips unknown fields while
+ * parsing.
+ */
+@Slf4j
+final class FieldFilter {
+
+    /** The depth of nested messages filtered, as limited by {@link CodedInputStream}. */
+    private static final int RECURSION_LIMIT = 64;
+
+    /** The sorted numbers of the allowed fields, {@code null} for all fields. */
+    private final int[] fieldNumbers;
+    /** The message type to allow the declared fields of, may be {@code null}. */
+    private final Descriptors.Descriptor descriptor;
+    /** Whether the fields in the extension ranges of the type are allowed. */
+    private final boolean allowExtensions;
+    /** The filters of the nested message fields, by field number. */
+    private final Map<Integer, FieldFilter> nestedFilters =
+            new HashMap<Integer, FieldFilter>();
+
+    /** Whether messages may lose required fields to the filter. */
+    @Getter
+    private final boolean partial;
+
+    private FieldFilter(
+            final int[] fieldNumbers, final Descriptors.Descriptor descriptor,
+            final boolean allowExtensions) {
+        this.fieldNumbers = fieldNumbers;
+        this.descriptor = descriptor;
+        this.allowExtensions = allowExtensions;
+        partial = (fieldNumbers != null);
+    }
+
+    /**
+     * A filter for messages of the type of the supplied {@code prototype}.
+     *
+     * @param prototype The base protocol buffers serialization unit.
+     * @param discardUnknownFields Whether to drop the fields that are not
+     *                             declared for the message type.
+     * @param allowExtensions Whether the fields in the extension ranges of the
+     *                        message type are allowed.
+     * @param projection The numbers of the top-level fields to keep, or
+     *                   {@code null} to keep all of the fields.
+     * @return The field filter, or {@code null} if no fields are filtered.
+     */
+    static FieldFilter newInstance(
+            final MessageLite prototype, final boolean discardUnknownFields,
+            final boolean allowExtensions, final int[] projection) {
+        int[] fieldNumbers = null;
+        if (projection != null) {
+            fieldNumbers = projection.clone();
+            Arrays.sort(fieldNumbers);
+        }
+
+        Descriptors.Descriptor descriptor = null;
+        if (discardUnknownFields) {
+            if (prototype instanceof Message) {
+                descriptor = ((Message) prototype).getDescriptorForType();
+            } else {
+                log.info("Unknown fields of lite messages are not retained by the parser.");
+            }
+        }
+
+        if ((fieldNumbers == null) && (descriptor == null)) {
+            return null;
+        }
+        final FieldFilter filter = new FieldFilter(fieldNumbers, descriptor, allowExtensions);
+        if (descriptor != null) {
+            final Map<Descriptors.Descriptor, FieldFilter> filters =
+                    new IdentityHashMap<Descriptors.Descriptor, FieldFilter>();
+            filter.addNestedFilters(filters, allowExtensions);
+        }
+        return filter;
+    }
+
+    /**
+     * Adds the filters of the nested message fields, a type that is nested in
+     * itself shares its filter.
+     */
+    private void addNestedFilters(
+            final Map<Descriptors.Descriptor, FieldFilter> filters,
+            final boolean allowExtensions) {
+        for (final Descriptors.FieldDescriptor field : descriptor.getFields()) {
+            if (field.getType() != Descriptors.FieldDescriptor.Type.MESSAGE) {
+                continue;
+            }
+            final Descriptors.Descriptor messageType = field.getMessageType();
+            FieldFilter nested = filters.get(messageType);
+            if (nested == null) {
+                nested = new FieldFilter(null, messageType, allowExtensions);
+                filters.put(messageType, nested);
+                nested.addNestedFilters(filters, allowExtensions);
+            }
+            nestedFilters.put(field.getNumber(), nested);
+        }
+    }
+
+    /**
+     * Copies the allowed fields of the message in the {@code input} into the
+     * {@code output} array, which must be at least as long as the message.
+     *
+     * @param input The serialized message.
+     * @param output The array to copy the allowed fields to.
+     * @return The length of the filtered message.
+     * @throws IOException If the message is malformed, or nested deeper than
+     *                     the recursion limit.
+     */
+    int filter(final CodedInputStream input, final byte[] output)
+            throws IOException {
+        return filter(input, output, 0);
+    }
+
+    private int filter(
+            final CodedInputStream input, final byte[] output, final int depth)
+            throws IOException {
+        if (depth >= RECURSION_LIMIT) {
+            throw new InvalidProtocolBufferException(
+                    "Protocol message had too many levels of nesting.");
+        }
+        final CodedOutputStream codedOutput = CodedOutputStream.newInstance(output);
+        filter(input, codedOutput, depth);
+        codedOutput.flush();
+        return output.length - codedOutput.spaceLeft();
+    }
+
+    private void filter(
+            final CodedInputStream input, final CodedOutputStream output,
+            final int depth) throws IOException {
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            final int fieldNumber = WireFormat.getTagFieldNumber(tag);
+            if (!isAllowed(fieldNumber)) {
+                input.skipField(tag);
+                continue;
+            }
+
+            final FieldFilter nested = nestedFilters.get(fieldNumber);
+            if ((nested != null) && (tag & 0x7) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                // filtered in place, fields are never written back longer than
+                // they were read
+                final byte[] message = input.readRawBytes(input.readRawVarint32());
+                final CodedInputStream nestedInput = CodedInputStream.newInstance(message);
+                final int length = nested.filter(nestedInput, message, depth + 1);
+                output.writeRawVarint32(tag);
+                output.writeRawVarint32(length);
+                output.writeRawBytes(message, 0, length);
+            } else {
+                copyField(tag, input, output);
+            }
+        }
+    }
+
+    private boolean isAllowed(final int fieldNumber) {
+        if ((fieldNumbers != null) && (Arrays.binarySearch(fieldNumbers, fieldNumber) < 0)) {
+            return false;
+        }
+        if (descriptor == null) {
+            return true;
+        }
+        return (descriptor.findFieldByNumber(fieldNumber) != null)
+                || (allowExtensions && descriptor.isExtensionNumber(fieldNumber));
+    }
+
+    /** Copies a single field, with its {@code tag}, to the {@code output}. */
+    private static void copyField(
+            final int tag, final CodedInputStream input, final CodedOutputStream output)
+            throws IOException {
+        output.writeRawVarint32(tag);
+        switch (tag & 0x7) {
+            case WireFormat.WIRETYPE_VARINT:
+                output.writeRawVarint64(input.readRawVarint64());
+                break;
+            case WireFormat.WIRETYPE_FIXED64:
+                output.writeRawLittleEndian64(input.readRawLittleEndian64());
+                break;
+            case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+                final int length = input.readRawVarint32();
+                output.writeRawVarint32(length);
+                output.writeRawBytes(input.readRawBytes(length));
+                break;
+            case WireFormat.WIRETYPE_START_GROUP:
+                int groupTag;
+                while ((groupTag = input.readTag()) != 0
+                        && (groupTag & 0x7) != WireFormat.WIRETYPE_END_GROUP) {
+                    copyField(groupTag, input, output);
+                }
+                if (groupTag != (tag + 1)) {
+                    throw new InvalidProtocolBufferException("Unterminated group.");
+                }
+                output.writeRawVarint32(groupTag);
+                break;
+            case WireFormat.WIRETYPE_FIXED32:
+                output.writeRawLittleEndian32(input.readRawLittleEndian32());
+                break;
+            default:
+                throw new InvalidProtocolBufferException("Invalid wire type.");
+        }
+    }
+
+}
@@ -20,7 +20,6 @@ import com.google.protobuf.MessageLite;
 import org.glassfish.grizzly.Buffer;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
@@ -32,6 +31,9 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class FixedLengthProtobufDecoder extends AbstractProtobufDecoder {
 
+    /** The length of the message length stored in the header. */
+    private static final int INT_LENGTH = 4;
+
     /** The length of the fixed header storing the size of the message. */
     private final int headerLength;
 
@@ -66,11 +68,24 @@ public class FixedLengthProtobufDecoder extends AbstractProtobufDecoder {
             throw new IllegalArgumentException("'input' cannot be null.");
         }
 
-        final byte[] messageLengthArr = new byte[headerLength];
-        input.get(messageLengthArr);
-        log.debug("inputRemaining={}", input.remaining());
+        if (headerLength < INT_LENGTH) {
+            throw new IOException("Fixed length header is too short for the message length.");
+        }
+
+        // a big-endian int, padded with zeros to the header length
+        final int messageLength = ((input.get() & 0xFF) << 24)
+                | ((input.get() & 0xFF) << 16)
+                | ((input.get() & 0xFF) << 8)
+                | (input.get() & 0xFF);
+        input.position(input.position() + headerLength - INT_LENGTH);
 
-        return ByteBuffer.wrap(messageLengthArr).getInt();
+        return messageLength;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isHeaderComplete(final Buffer input) {
+        return input.remaining() >= headerLength;
     }
 
     /** {@inheritDoc} */
@@ -18,7 +18,6 @@ package me.cmoz.grizzly.protobuf;
 import org.glassfish.grizzly.utils.BufferOutputStream;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -29,6 +28,9 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class FixedLengthProtobufEncoder extends AbstractProtobufEncoder {
 
+    /** The length of the message length stored in the header. */
+    private static final int INT_LENGTH = 4;
+
     /** The length of the fixed header storing the size of the message. */
     private final int headerLength;
 
@@ -54,12 +56,27 @@ public class FixedLengthProtobufEncoder extends AbstractProtobufEncoder {
         if (messageLength < 0) {
             throw new IllegalArgumentException("'messageLength' cannot be negative.");
         }
-        log.debug("encodedMessageLength={}", messageLength);
+        if (headerLength < INT_LENGTH) {
+            throw new IOException("Fixed length header is too short for the message length.");
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("encodedMessageLength={}", messageLength);
+        }
 
-        final ByteBuffer buf = ByteBuffer.allocate(headerLength);
-        buf.putInt(messageLength);
+        // a big-endian int, padded with zeros to the header length
+        outputStream.write(messageLength >>> 24);
+        outputStream.write(messageLength >>> 16);
+        outputStream.write(messageLength >>> 8);
+        outputStream.write(messageLength);
+        for (int i = INT_LENGTH; i < headerLength; i++) {
+            outputStream.write(0);
+        }
+    }
 
-        outputStream.write(buf.array());
+    /** {@inheritDoc} */
+    @Override
+    public int getHeaderLength(final int messageLength) {
+        return headerLength;
     }
 
     /** {@inheritDoc} */
@@ -17,8 +17,6 @@ package me.cmoz.grizzly.protobuf;
 
 import com.google.protobuf.ExtensionRegistryLite;
 import com.google.protobuf.MessageLite;
-import org.glassfish.grizzly.Buffer;
-import org.glassfish.grizzly.filterchain.AbstractCodecFilter;
 
 import lombok.*;
 
@@ -26,7 +24,7 @@ import lombok.*;
  * A filter for Google's Protocol Buffers serialization format that uses a fixed
  * length header that stores the size of a message.
  */
-public final class FixedLengthProtobufFilter extends AbstractCodecFilter<Buffer, MessageLite> {
+public final class FixedLengthProtobufFilter extends AbstractProtobufFilter {
 
     /** The default length of the fixed header. */
     public static final int DEFAULT_HEADER_LENGTH = 4;
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import org.glassfish.grizzly.attributes.AttributeStorage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Records the latency of inbound frames, for a sampled fraction of the frames
+ * and for every frame that is slower than a threshold.
+ * </p>
+ * A frame is timed from the read of its header until its message is decoded,
+ * which includes the time spent waiting for the rest of the frame to arrive,
+ * and the time spent parsing the message is timed separately. The records are
+ * kept in two fixed-size rings, one for the sampled frames and one for the
+ * slow frames, the oldest records are overwritten as new ones are added. The
+ * rings are written without locks and can be read at any time.
+ * </p>
+ * A tracer may be shared by the filters of several message types. Each
+ * thread counts down to its next sample on its own, so the threads that
+ * decode frames do not contend on a shared counter.
+ * </p>
+ * <b>Note</b> The frames that are neither sampled nor slow are timed but no
+ * record is allocated for them.
+ */
+public final class FrameTracer {
+
+    /** Every how many frames a frame is sampled. */
+    @Getter
+    private final int sampleInterval;
+    /** The frame latency from which frames are always recorded, in nanoseconds. */
+    private final long slowThresholdNanos;
+
+    /** The frames left until the next sample, per thread. */
+    private final ThreadLocal<SampleCountdown> countdown =
+            new ThreadLocal<SampleCountdown>() {
+                @Override
+                protected SampleCountdown initialValue() {
+                    return new SampleCountdown();
+                }
+            };
+    /** The records of the sampled frames. */
+    private final Ring sampledFrames;
+    /** The records of the slow frames. */
+    private final Ring slowFrames;
+
+    /**
+     * A tracer of the latency of inbound frames.
+     *
+     * @param sampleInterval Every how many frames a frame is sampled, e.g.
+     *                       {@code 100} samples one percent of the frames.
+     * @param slowThreshold The frame latency from which frames are always
+     *                      recorded.
+     * @param unit The unit of the {@code slowThreshold}.
+     * @param capacity The number of records kept of the sampled frames, and
+     *                 of the slow frames.
+     */
+    public FrameTracer(
+            final int sampleInterval, final long slowThreshold,
+            final @NonNull TimeUnit unit, final int capacity) {
+        if (sampleInterval < 1) {
+            throw new IllegalArgumentException("'sampleInterval' must be positive.");
+        }
+        if (slowThreshold < 0) {
+            throw new IllegalArgumentException("'slowThreshold' cannot be negative.");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("'capacity' must be positive.");
+        }
+        this.sampleInterval = sampleInterval;
+        slowThresholdNanos = unit.toNanos(slowThreshold);
+        sampledFrames = new Ring(capacity);
+        slowFrames = new Ring(capacity);
+    }
+
+    /**
+     * The records of the sampled frames, oldest first.
+     *
+     * @return A snapshot of the sampled frames.
+     */
+    public List<FrameRecord> getSampledFrames() {
+        return sampledFrames.snapshot();
+    }
+
+    /**
+     * The records of the frames slower than the threshold, oldest first.
+     *
+     * @return A snapshot of the slow frames.
+     */
+    public List<FrameRecord> getSlowFrames() {
+        return slowFrames.snapshot();
+    }
+
+    /**
+     * A report of the recorded frames, one frame per line.
+     *
+     * @return The sampled frames followed by the slow frames.
+     */
+    public String dump() {
+        final StringBuilder report = new StringBuilder();
+        report.append("Sampled frames (1 in ").append(sampleInterval).append("):\n");
+        for (final FrameRecord record : getSampledFrames()) {
+            report.append("  ").append(record).append('\n');
+        }
+        report.append("Slow frames (>= ")
+                .append(TimeUnit.NANOSECONDS.toMicros(slowThresholdNanos))
+                .append("us):\n");
+        for (final FrameRecord record : getSlowFrames()) {
+            report.append("  ").append(record).append('\n');
+        }
+        return report.toString();
+    }
+
+    /**
+     * Records a frame that completed, if it is sampled or slow.
+     *
+     * @param storage The attribute storage of the connection.
+     * @param messageType The message type of the frame.
+     * @param size The serialized size of the message.
+     * @param frameNanos The time from the read of the header until the
+     *                   message was decoded.
+     * @param parseNanos The time spent decoding the message.
+     */
+    void record(
+            final AttributeStorage storage, final String messageType,
+            final int size, final long frameNanos, final long parseNanos) {
+        final SampleCountdown remaining = countdown.get();
+        final boolean sampled = (remaining.frames == 0);
+        remaining.frames = sampled ? (sampleInterval - 1) : (remaining.frames - 1);
+        final boolean slow = frameNanos >= slowThresholdNanos;
+        if (!sampled && !slow) {
+            return;
+        }
+
+        final FrameRecord record = new FrameRecord(System.currentTimeMillis(),
+                messageType, String.valueOf(storage), size, frameNanos, parseNanos);
+        if (sampled) {
+            sampledFrames.add(record);
+        }
+        if (slow) {
+            slowFrames.add(record);
+        }
+    }
+
+    /**
+     * The latency of a single frame.
+     */
+    @Getter
+    public static final class FrameRecord {
+
+        /** The time the frame completed, in milliseconds since the epoch. */
+        private final long timestamp;
+        /** The class name of the message type. */
+        private final String messageType;
+        /** A description of the connection of the frame. */
+        private final String connection;
+        /** The serialized size of the message. */
+        private final int size;
+        /** The time from the read of the header until the message was decoded. */
+        private final long frameNanos;
+        /** The time spent decoding the message. */
+        private final long parseNanos;
+
+        FrameRecord(
+                final long timestamp, final String messageType,
+                final String connection, final int size,
+                final long frameNanos, final long parseNanos) {
+            this.timestamp = timestamp;
+            this.messageType = messageType;
+            this.connection = connection;
+            this.size = size;
+            this.frameNanos = frameNanos;
+            this.parseNanos = parseNanos;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String toString() {
+            return "timestamp=" + timestamp
+                    + ", messageType=" + messageType
+                    + ", size=" + size
+                    + ", frameMicros=" + TimeUnit.NANOSECONDS.toMicros(frameNanos)
+                    + ", parseMicros=" + TimeUnit.NANOSECONDS.toMicros(parseNanos)
+                    + ", connection=" + connection;
+        }
+
+    }
+
+    /**
+     * The time the header of the current frame of a connection was read.
+     */
+    static final class FrameStart {
+
+        /** The time the header was read, or {@code 0} if it was not timed. */
+        long headerNanos;
+
+    }
+
+    /**
+     * The frames a thread has left until its next sample.
+     */
+    private static final class SampleCountdown {
+
+        /** The frames to skip, the next frame is sampled at {@code 0}. */
+        int frames;
+
+    }
+
+    /**
+     * A fixed-size ring of records that overwrites its oldest records.
+     */
+    private static final class Ring {
+
+        /** The records, indexed by their sequence modulo the capacity. */
+        private final AtomicReferenceArray<FrameRecord> records;
+        /** The sequence of the next record. */
+        private final AtomicLong sequence = new AtomicLong();
+
+        Ring(final int capacity) {
+            records = new AtomicReferenceArray<FrameRecord>(capacity);
+        }
+
+        void add(final FrameRecord record) {
+            final long next = sequence.getAndIncrement();
+            records.set((int) (next % records.length()), record);
+        }
+
+        List<FrameRecord> snapshot() {
+            final int capacity = records.length();
+            final long end = sequence.get();
+            final List<FrameRecord> snapshot = new ArrayList<FrameRecord>(capacity);
+            for (long i = Math.max(0, end - capacity); i < end; i++) {
+                final FrameRecord record = records.get((int) (i % capacity));
+                if (record != null) {
+                    snapshot.add(record);
+                }
+            }
+            return snapshot;
+        }
+
+    }
+
+}
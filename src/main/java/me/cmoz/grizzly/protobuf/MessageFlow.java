@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+/**
+ * Interfaces for demand-driven streams of messages, with the same methods as
+ * the {@code java.util.concurrent.Flow} interfaces of Java 9 so they can be
+ * adapted one to one.
+ */
+public final class MessageFlow {
+
+    private MessageFlow() {
+    }
+
+    /**
+     * A source of messages that are sent to its subscriber on demand.
+     *
+     * @param <T> The type of the messages.
+     */
+    public interface Publisher<T> {
+
+        /**
+         * Adds the supplied {@code subscriber}, which is sent
+         * {@link Subscriber#onSubscribe(Subscription)} first.
+         *
+         * @param subscriber The receiver of the messages.
+         */
+        void subscribe(final Subscriber<? super T> subscriber);
+
+    }
+
+    /**
+     * A receiver of messages, which are only sent once they are requested.
+     *
+     * @param <T> The type of the messages.
+     */
+    public interface Subscriber<T> {
+
+        /**
+         * Receives the subscription to request messages with.
+         *
+         * @param subscription The subscription to the publisher.
+         */
+        void onSubscribe(final Subscription subscription);
+
+        /**
+         * Receives the next message.
+         *
+         * @param item The message.
+         */
+        void onNext(final T item);
+
+        /**
+         * Receives the error that ended the stream, no other methods are
+         * called afterwards.
+         *
+         * @param throwable The error.
+         */
+        void onError(final Throwable throwable);
+
+        /**
+         * Receives the end of the stream, no other methods are called
+         * afterwards.
+         */
+        void onComplete();
+
+    }
+
+    /**
+     * The link between a publisher and its subscriber.
+     */
+    public interface Subscription {
+
+        /**
+         * Adds to the number of messages the subscriber can receive.
+         *
+         * @param n The number of messages, must be positive.
+         */
+        void request(final long n);
+
+        /**
+         * Stops the messages being sent to the subscriber.
+         */
+        void cancel();
+
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.attributes.AttributeStorage;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Reclaims the memory held by frames that were started but never completed,
+ * e.g. a peer that sends a large message header and then stalls.
+ * </p>
+ * A frame is pending from the read of its header until the whole message has
+ * arrived. A connection is closed, and its buffered data discarded, when a
+ * frame is pending for longer than the frame timeout or when the total bytes
+ * buffered by pending frames exceed the memory cap, in which case the oldest
+ * pending frames are dropped first.
+ * </p>
+ * Pending frames are ordered by their deadlines, so {@link #run()} only visits
+ * the frames that expired and never scans all of the connections. A frame is
+ * removed from the guard as soon as it completes. A guard may be shared by the
+ * filters of several transports to apply a single memory cap.
+ * </p>
+ * <b>Note</b> The guard must be run periodically to enforce the frame timeout,
+ * e.g. with a {@link java.util.concurrent.ScheduledExecutorService}. Frames
+ * are never timed out if it is not scheduled, the memory cap is enforced
+ * either way.
+ */
+@Slf4j
+public final class PendingFrameGuard implements Runnable {
+
+    /** The time a frame may be pending in nanoseconds. */
+    private final long frameTimeoutNanos;
+    /** The maximum bytes buffered by all the pending frames. */
+    @Getter
+    private final long maxPendingBytes;
+
+    /** The pending frames, in the order of their deadlines. */
+    private final ConcurrentSkipListSet<PendingFrame> pendingFrames =
+            new ConcurrentSkipListSet<PendingFrame>();
+    /** The sequence of the frames, to order frames with the same deadline. */
+    private final AtomicLong frameSequence = new AtomicLong();
+    /** The bytes buffered by all the pending frames. */
+    private final AtomicLong pendingBytes = new AtomicLong();
+
+    /**
+     * A guard over the frames that have not completed.
+     *
+     * @param frameTimeout The time a frame may be pending before its
+     *                     connection is closed.
+     * @param unit The unit of the {@code frameTimeout}.
+     * @param maxPendingBytes The maximum bytes buffered by all the pending
+     *                        frames, or {@code 0} for no limit.
+     */
+    public PendingFrameGuard(
+            final long frameTimeout, final @NonNull TimeUnit unit,
+            final long maxPendingBytes) {
+        if (frameTimeout < 1) {
+            throw new IllegalArgumentException("'frameTimeout' must be positive.");
+        }
+        if (maxPendingBytes < 0) {
+            throw new IllegalArgumentException("'maxPendingBytes' cannot be negative.");
+        }
+        frameTimeoutNanos = unit.toNanos(frameTimeout);
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * The bytes currently buffered by all the pending frames.
+     *
+     * @return The pending bytes.
+     */
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * The number of frames currently pending.
+     *
+     * @return The pending frames.
+     */
+    int getPendingFrameCount() {
+        return pendingFrames.size();
+    }
+
+    /**
+     * Closes the connections of the frames that have been pending for longer
+     * than the frame timeout.
+     */
+    @Override
+    public void run() {
+        final long now = System.nanoTime();
+        final Iterator<PendingFrame> iterator = pendingFrames.iterator();
+        while (iterator.hasNext()) {
+            final PendingFrame frame = iterator.next();
+            if (frame.deadline - now > 0) {
+                break;
+            }
+            if (frame.release()) {
+                log.warn("Closing connection with a frame pending for more than {}ms.",
+                        TimeUnit.NANOSECONDS.toMillis(frameTimeoutNanos));
+                close(frame.storage);
+            }
+        }
+    }
+
+    /**
+     * Starts tracking a frame that is waiting for more data.
+     *
+     * @param storage The attribute storage of the connection.
+     * @return The pending frame.
+     */
+    PendingFrame start(final AttributeStorage storage) {
+        final PendingFrame frame = new PendingFrame(storage,
+                System.nanoTime() + frameTimeoutNanos, frameSequence.getAndIncrement());
+        pendingFrames.add(frame);
+        return frame;
+    }
+
+    /**
+     * Drops the oldest pending frames while the memory cap is exceeded.
+     */
+    private void enforceMemoryCap() {
+        PendingFrame oldest;
+        while ((pendingBytes.get() > maxPendingBytes)
+                && ((oldest = pendingFrames.pollFirst()) != null)) {
+            if (oldest.release()) {
+                log.warn("Closing connection, pending frames exceed {} bytes.",
+                        maxPendingBytes);
+                close(oldest.storage);
+            }
+        }
+    }
+
+    private static void close(final AttributeStorage storage) {
+        if (storage instanceof Connection) {
+            ((Connection) storage).closeSilently();
+        }
+    }
+
+    /**
+     * A frame of a connection that is waiting for more data.
+     */
+    final class PendingFrame implements Comparable<PendingFrame> {
+
+        /** The attribute storage of the connection. */
+        private final AttributeStorage storage;
+        /** The time the frame must be completed by, in nanoseconds. */
+        private final long deadline;
+        /** The order the frame was started in. */
+        private final long sequence;
+        /** Whether the frame is no longer tracked. */
+        private volatile boolean released;
+        /** The bytes of the frame that have been buffered. */
+        private long bytes;
+
+        PendingFrame(final AttributeStorage storage, final long deadline, final long sequence) {
+            this.storage = storage;
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Sets the bytes of the frame that have been buffered so far.
+         *
+         * @param bufferedBytes The buffered bytes of the frame.
+         */
+        void update(final long bufferedBytes) {
+            final long total;
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                total = pendingBytes.addAndGet(bufferedBytes - bytes);
+                bytes = bufferedBytes;
+            }
+            if ((maxPendingBytes > 0) && (total > maxPendingBytes)) {
+                enforceMemoryCap();
+            }
+        }
+
+        /**
+         * Stops tracking the frame, e.g. once it has completed.
+         *
+         * @return {@code false} if the frame had already been released.
+         */
+        synchronized boolean release() {
+            if (released) {
+                return false;
+            }
+            released = true;
+            pendingBytes.addAndGet(-bytes);
+            pendingFrames.remove(this);
+            return true;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public int compareTo(final PendingFrame other) {
+            final long byDeadline = deadline - other.deadline;
+            if (byDeadline != 0) {
+                return (byDeadline < 0) ? -1 : 1;
+            }
+            return (sequence < other.sequence) ? -1 : ((sequence == other.sequence) ? 0 : 1);
+        }
+
+    }
+
+}
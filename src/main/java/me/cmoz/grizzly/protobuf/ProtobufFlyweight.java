@@ -0,0 +1,781 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import org.glassfish.grizzly.Buffer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import lombok.NonNull;
+
+/**
+ * A read-only view of a serialized Protocol Buffers message that reads the
+ * fields of the message directly from the bytes of a {@link Buffer}, on or
+ * off heap.
+ * </p>
+ * The fields are indexed with a single pass over the tags of the message when
+ * the view is positioned with {@link #wrap(Buffer, int, int)}, after which
+ * they are read by field number, i.e. with the {@code *_FIELD_NUMBER}
+ * constants of the generated message classes. A view can be repositioned over
+ * any number of messages without allocating.
+ * </p>
+ * Singular accessors return the last occurrence of a field, as the protobuf
+ * parser would, and the zero value of the type if the field is not present.
+ * Indexed accessors return the occurrences of a repeated field in order.
+ * Packed repeated fields are not expanded by the view.
+ * </p>
+ * <b>Note</b> A view emitted by a decoder is only valid for the duration of
+ * the {@code handleRead} it was passed to, use {@link #toMessage()} to keep
+ * the message.
+ */
+public final class ProtobufFlyweight implements MessageLite {
+
+    /** The wire type for a varint encoded field. */
+    private static final int WIRETYPE_VARINT = 0;
+    /** The wire type for a 64-bit fixed field. */
+    private static final int WIRETYPE_FIXED64 = 1;
+    /** The wire type for a length delimited field. */
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    /** The wire type for the start of a group. */
+    private static final int WIRETYPE_START_GROUP = 3;
+    /** The wire type for the end of a group. */
+    private static final int WIRETYPE_END_GROUP = 4;
+    /** The wire type for a 32-bit fixed field. */
+    private static final int WIRETYPE_FIXED32 = 5;
+    /** The index used to find the last occurrence of a field. */
+    private static final int LAST = -1;
+    /** The initial number of fields the index can hold. */
+    private static final int INITIAL_CAPACITY = 16;
+    /** The charset of protobuf string fields. */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** The base protocol buffers serialization unit. */
+    private final MessageLite prototype;
+
+    /** The buffer containing the message. */
+    private Buffer buffer;
+    /** The position of the message in the buffer. */
+    private int offset;
+    /** The size of the message. */
+    private int length;
+    /** The read position used while indexing the message. */
+    private int cursor;
+
+    /** The number of fields in the index. */
+    private int fieldCount;
+    /** The field number of each indexed field. */
+    private int[] fieldNumbers = new int[INITIAL_CAPACITY];
+    /** The wire type of each indexed field. */
+    private int[] wireTypes = new int[INITIAL_CAPACITY];
+    /** The position of the value of each indexed field. */
+    private int[] valueOffsets = new int[INITIAL_CAPACITY];
+    /** The size of the value of each indexed field. */
+    private int[] valueLengths = new int[INITIAL_CAPACITY];
+
+    /**
+     * A flyweight view for messages of the type of the {@code prototype}.
+     *
+     * @param prototype The base protocol buffers serialization unit.
+     */
+    public ProtobufFlyweight(final @NonNull MessageLite prototype) {
+        this.prototype = prototype.getDefaultInstanceForType();
+    }
+
+    /**
+     * Positions the view over the message of {@code length} bytes stored at
+     * the {@code offset} of the {@code buffer} and indexes its fields. The
+     * position and limit of the buffer are not changed.
+     *
+     * @param buffer The buffer containing the message.
+     * @param offset The position of the message in the buffer.
+     * @param length The size of the message.
+     * @return This view.
+     * @throws InvalidProtocolBufferException If the message is malformed.
+     */
+    public ProtobufFlyweight wrap(
+            final @NonNull Buffer buffer, final int offset, final int length)
+            throws InvalidProtocolBufferException {
+        if (offset < 0 || length < 0 || offset + length > buffer.limit()) {
+            throw new IllegalArgumentException("'offset' and 'length' must be within the buffer.");
+        }
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        fieldCount = 0;
+
+        final int end = offset + length;
+        cursor = offset;
+        while (cursor < end) {
+            final int tag = (int) readRawVarint(end);
+            final int fieldNumber = tag >>> 3;
+            final int wireType = tag & 7;
+            if (fieldNumber == 0) {
+                throw new InvalidProtocolBufferException(
+                        "Protocol message contained an invalid tag (zero).");
+            }
+
+            int valueOffset = cursor;
+            switch (wireType) {
+                case WIRETYPE_VARINT:
+                    readRawVarint(end);
+                    break;
+                case WIRETYPE_FIXED64:
+                    cursor += 8;
+                    break;
+                case WIRETYPE_LENGTH_DELIMITED:
+                    final int size = (int) readRawVarint(end);
+                    if (size < 0) {
+                        throw new InvalidProtocolBufferException(
+                                "Protocol message contained a negative length field.");
+                    }
+                    valueOffset = cursor;
+                    cursor += size;
+                    break;
+                case WIRETYPE_START_GROUP:
+                    skipGroup(end);
+                    break;
+                case WIRETYPE_FIXED32:
+                    cursor += 4;
+                    break;
+                default:
+                    throw new InvalidProtocolBufferException(
+                            "Protocol message tag had invalid wire type.");
+            }
+            if (cursor > end || cursor < valueOffset) {
+                throw new InvalidProtocolBufferException(
+                        "Protocol message field was truncated.");
+            }
+
+            append(fieldNumber, wireType, valueOffset, cursor - valueOffset);
+        }
+
+        return this;
+    }
+
+    /**
+     * Parses the message the view is positioned over into a message object
+     * that does not depend on the underlying buffer.
+     *
+     * @return The parsed message.
+     * @throws InvalidProtocolBufferException If the message could not be
+     *                                        parsed.
+     */
+    public MessageLite toMessage() throws InvalidProtocolBufferException {
+        return newBuilderForType().mergeFrom(toByteArray()).build();
+    }
+
+    /**
+     * Whether the message contains the field.
+     *
+     * @param fieldNumber The number of the field.
+     * @return {@code true} if the field is present.
+     */
+    public boolean has(final int fieldNumber) {
+        return slot(fieldNumber, LAST) >= 0;
+    }
+
+    /**
+     * The number of occurrences of a (repeated) field in the message.
+     *
+     * @param fieldNumber The number of the field.
+     * @return The number of occurrences of the field.
+     */
+    public int getCount(final int fieldNumber) {
+        int count = 0;
+        for (int i = 0; i < fieldCount; i++) {
+            if (fieldNumbers[i] == fieldNumber) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads an {@code int32}, {@code uint32} or {@code enum} field.
+     *
+     * @param fieldNumber The number of the field.
+     * @return The value of the field, or {@code 0} if not present.
+     */
+    public int getInt32(final int fieldNumber) {
+        return getInt32(fieldNumber, LAST);
+    }
+
+    /**
+     * Reads an occurrence of a repeated {@code int32}, {@code uint32} or
+     * {@code enum} field.
+     *
+     * @param fieldNumber The number of the field.
+     * @param index The occurrence of the field.
+     * @return The value of the field.
+     */
+    public int getInt32(final int fieldNumber, final int index) {
+        return (int) getInt64(fieldNumber, index);
+    }
+
+    /**
+     * Reads an {@code int64} or {@code uint64} field.
+     *
+     * @param fieldNumber The number of the field.
+     * @return The value of the field, or {@code 0} if not present.
+     */
+    public long getInt64(final int fieldNumber) {
+        return getInt64(fieldNumber, LAST);
+    }
+
+    /**
+     * Reads an occurrence of a repeated {@code int64} or {@code uint64} field.
+     *
+     * @param fieldNumber The number of the field.
+     * @param index The occurrence of the field.
+     * @return The value of the field.
+     */
+    public long getInt64(final int fieldNumber, final int index) {
+        final int slot = slot(fieldNumber, index, WIRETYPE_VARINT);
+        return (slot < 0) ? 0L : varintAt(valueOffsets[slot]);
+    }
+
+    /**
+     * Reads a {@code sint32} field.
+     *
+     * @param fieldNumber The number of the field.
+     * @return The value of the field, or {@code 0} if not present.
+     */
+    public int getSInt32(final int fieldNumber) {
+        return getSInt32(fieldNumber, LAST);
+    }
+
+    /**
+     * Reads an occurrence of a repeated {@code sint32} field.
+     *
+     * @param fieldNumber The number of the field.
+     * @param index The occurrence of the field.
+     * @return The value of the field.
+     */
+    public int getSInt32(final int fieldNumber, final int index) {
+        return CodedInputStream.decodeZigZag32(getInt32(fieldNumber, index));
+    }
+
+    /**
+     * Reads a {@code sint64} field.
+     *
+     * @param fieldNumber The number of the field.
+     * @return The value of the field, or {@code 0} if not present.
+     */
+    public long getSInt64(final int fieldNumber) {
+        return getSInt64(fieldNumber, LAST);
+    }
+
+    /**
+     * Reads an occurrence of a repeated {@code sint64} field.
+     *
+     * @param fieldNumber The number of the field.
+     * @param index The occurrence of the field.
+     * @return The value of the field.
+     */
+    public long getSInt64(final int fieldNumber, final int index) {
+        return CodedInputStream.decodeZigZag64(getInt64(fieldNumber, index));
+    }
+
+    /**
+     * Reads a {@code bool} field.
+     *
+     * @param fieldNumber The number of the field.
+     * @return The value of the field, or {@code false} if not present.
+     */
+    public boolean getBool(final int fieldNumber) {
+        return getBool(fieldNumber, LAST);
+    }
+
+    /**
+     * Reads an occurrence of a repeated {@code bool} field.
+     *
+     * @param fieldNumber The number of the field.
+     * @param index The occurrence of the field.
+     * @return The value of the field.
+     */
+    public boolean getBool(final int fieldNumber, final int index) {
+        return getInt64(fieldNumber, index) != 0;
+    }
+
+    /**
+     * Reads a {@code fixed32} or {@code sfixed32} field.
+     *
+     * @param fieldNumber The number of the field.
+     * @return The value of the field, or {@code 0} if not present.
+     */
+    public int getFixed32(final int fieldNumber) {
+        return getFixed32(fieldNumber, LAST);
+    }
+
+    /**
+     * Reads an occurrence of a repeated {@code fixed32} or {@code sfixed32}
+     * field.
+     *
+     * @param fieldNumber The number of the field.
+     * @param index The occurrence of the field.
+     * @return The value of the field.
+     */
+    public int getFixed32(final int fieldNumber, final int index) {
+        final int slot = slot(fieldNumber, index, WIRETYPE_FIXED32);
+        return (slot < 0) ? 0 : fixed32At(valueOffsets[slot]);
+    }
+
+    /**
+     * Reads a {@code fixed64} or {@code sfixed64} field.
+     *
+     * @param fieldNumber The number of the field.
+     * @return The value of the field, or {@code 0} if not present.
+     */
+    public long getFixed64(final int fieldNumber) {
+        return getFixed64(fieldNumber, LAST);
+    }
+
+    /**
+     * Reads an occurrence of a repeated {@code fixed64} or {@code sfixed64}
+     * field.
+     *
+     * @param fieldNumber The number of the field.
+     * @param index The occurrence of the field.
+     * @return The value of the field.
+     */
+    public long getFixed64(final int fieldNumber, final int index) {
+        final int slot = slot(fieldNumber, index, WIRETYPE_FIXED64);
+        if (slot < 0) {
+            return 0L;
+        }
+        final int pos = valueOffsets[slot];
+        return (fixed32At(pos) & 0xFFFFFFFFL) | ((long) fixed32At(pos + 4) << 32);
+    }
+
+    /**
+     * Reads a {@code float} field.
+     *
+     * @param fieldNumber The number of the field.
+     * @return The value of the field, or {@code 0} if not present.
+     */
+    public float getFloat(final int fieldNumber) {
+        return getFloat(fieldNumber, LAST);
+    }
+
+    /**
+     * Reads an occurrence of a repeated {@code float} field.
+     *
+     * @param fieldNumber The number of the field.
+     * @param index The occurrence of the field.
+     * @return The value of the field.
+     */
+    public float getFloat(final int fieldNumber, final int index) {
+        return Float.intBitsToFloat(getFixed32(fieldNumber, index));
+    }
+
+    /**
+     * Reads a {@code double} field.
+     *
+     * @param fieldNumber The number of the field.
+     * @return The value of the field, or {@code 0} if not present.
+     */
+    public double getDouble(final int fieldNumber) {
+        return getDouble(fieldNumber, LAST);
+    }
+
+    /**
+     * Reads an occurrence of a repeated {@code double} field.
+     *
+     * @param fieldNumber The number of the field.
+     * @param index The occurrence of the field.
+     * @return The value of the field.
+     */
+    public double getDouble(final int fieldNumber, final int index) {
+        return Double.longBitsToDouble(getFixed64(fieldNumber, index));
+    }
+
+    /**
+     * Reads a {@code string} field, this allocates the returned string.
+     *
+     * @param fieldNumber The number of the field.
+     * @return The value of the field, or an empty string if not present.
+     */
+    public String getString(final int fieldNumber) {
+        return getString(fieldNumber, LAST);
+    }
+
+    /**
+     * Reads an occurrence of a repeated {@code string} field, this allocates
+     * the returned string.
+     *
+     * @param fieldNumber The number of the field.
+     * @param index The occurrence of the field.
+     * @return The value of the field.
+     */
+    public String getString(final int fieldNumber, final int index) {
+        final int slot = slot(fieldNumber, index, WIRETYPE_LENGTH_DELIMITED);
+        if (slot < 0) {
+            return "";
+        }
+        final int pos = valueOffsets[slot];
+        return buffer.toStringContent(UTF_8, pos, pos + valueLengths[slot]);
+    }
+
+    /**
+     * The size of a {@code string}, {@code bytes} or message field.
+     *
+     * @param fieldNumber The number of the field.
+     * @return The size of the field, or {@code 0} if not present.
+     */
+    public int getLength(final int fieldNumber) {
+        return getLength(fieldNumber, LAST);
+    }
+
+    /**
+     * The size of an occurrence of a repeated {@code string}, {@code bytes}
+     * or message field.
+     *
+     * @param fieldNumber The number of the field.
+     * @param index The occurrence of the field.
+     * @return The size of the field.
+     */
+    public int getLength(final int fieldNumber, final int index) {
+        final int slot = slot(fieldNumber, index, WIRETYPE_LENGTH_DELIMITED);
+        return (slot < 0) ? 0 : valueLengths[slot];
+    }
+
+    /**
+     * Copies a {@code string} or {@code bytes} field into the supplied
+     * {@code destination} array.
+     *
+     * @param fieldNumber The number of the field.
+     * @param destination The array to copy the field into.
+     * @param destinationOffset The position in the array to copy to.
+     * @return The number of bytes copied, or {@code 0} if not present.
+     */
+    public int getBytes(
+            final int fieldNumber, final byte[] destination,
+            final int destinationOffset) {
+        final int slot = slot(fieldNumber, LAST, WIRETYPE_LENGTH_DELIMITED);
+        if (slot < 0) {
+            return 0;
+        }
+        final int size = valueLengths[slot];
+        copyTo(valueOffsets[slot], destination, destinationOffset, size);
+        return size;
+    }
+
+    /**
+     * Positions the {@code target} view over an embedded message field.
+     *
+     * @param fieldNumber The number of the field.
+     * @param target The view to position over the embedded message.
+     * @return {@code true} if the field is present.
+     * @throws InvalidProtocolBufferException If the embedded message is
+     *                                        malformed.
+     */
+    public boolean getMessage(final int fieldNumber, final ProtobufFlyweight target)
+            throws InvalidProtocolBufferException {
+        return getMessage(fieldNumber, LAST, target);
+    }
+
+    /**
+     * Positions the {@code target} view over an occurrence of a repeated
+     * embedded message field.
+     *
+     * @param fieldNumber The number of the field.
+     * @param index The occurrence of the field.
+     * @param target The view to position over the embedded message.
+     * @return {@code true} if the field is present.
+     * @throws InvalidProtocolBufferException If the embedded message is
+     *                                        malformed.
+     */
+    public boolean getMessage(
+            final int fieldNumber, final int index,
+            final @NonNull ProtobufFlyweight target)
+            throws InvalidProtocolBufferException {
+        final int slot = slot(fieldNumber, index, WIRETYPE_LENGTH_DELIMITED);
+        if (slot < 0) {
+            return false;
+        }
+        target.wrap(buffer, valueOffsets[slot], valueLengths[slot]);
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void writeTo(final CodedOutputStream output) throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        if (buffer.hasArray()) {
+            output.writeRawBytes(buffer.array(), buffer.arrayOffset() + offset, length);
+        } else {
+            output.writeRawBytes(toByteArray());
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getSerializedSize() {
+        return length;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Parser<? extends MessageLite> getParserForType() {
+        return prototype.getParserForType();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ByteString toByteString() {
+        return ByteString.copyFrom(toByteArray());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public byte[] toByteArray() {
+        final byte[] bytes = new byte[length];
+        copyTo(offset, bytes, 0, length);
+        return bytes;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void writeTo(final OutputStream output) throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        if (buffer.hasArray()) {
+            output.write(buffer.array(), buffer.arrayOffset() + offset, length);
+        } else {
+            output.write(toByteArray());
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void writeDelimitedTo(final OutputStream output) throws IOException {
+        final CodedOutputStream codedOutput = CodedOutputStream.newInstance(output);
+        codedOutput.writeRawVarint32(length);
+        writeTo(codedOutput);
+        codedOutput.flush();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Builder newBuilderForType() {
+        return prototype.newBuilderForType();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Builder toBuilder() {
+        try {
+            return newBuilderForType().mergeFrom(toByteArray());
+        } catch (final InvalidProtocolBufferException e) {
+            throw new IllegalStateException("Flyweight message could not be parsed.", e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public MessageLite getDefaultInstanceForType() {
+        return prototype;
+    }
+
+    /**
+     * {@inheritDoc}
+     * </p>
+     * <b>Note</b> The view does not check for required fields.
+     */
+    @Override
+    public boolean isInitialized() {
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return "ProtobufFlyweight(type=" + prototype.getClass().getName()
+                + ", length=" + length + ", fields=" + fieldCount + ")";
+    }
+
+    /**
+     * Finds the index slot of an occurrence of a field.
+     *
+     * @param fieldNumber The number of the field.
+     * @param index The occurrence of the field, or {@code LAST}.
+     * @return The slot of the field, or {@code -1} if not present.
+     */
+    private int slot(final int fieldNumber, final int index) {
+        if (index == LAST) {
+            for (int i = fieldCount - 1; i >= 0; i--) {
+                if (fieldNumbers[i] == fieldNumber) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int occurrence = 0;
+        for (int i = 0; i < fieldCount; i++) {
+            if (fieldNumbers[i] == fieldNumber && occurrence++ == index) {
+                return i;
+            }
+        }
+        throw new IndexOutOfBoundsException(
+                "Field " + fieldNumber + " has no occurrence " + index + ".");
+    }
+
+    /**
+     * Finds the index slot of an occurrence of a field with the expected
+     * {@code wireType}.
+     */
+    private int slot(final int fieldNumber, final int index, final int wireType) {
+        final int slot = slot(fieldNumber, index);
+        if (slot >= 0 && wireTypes[slot] != wireType) {
+            throw new IllegalStateException("Field " + fieldNumber
+                    + " has wire type " + wireTypes[slot] + " not " + wireType + ".");
+        }
+        return slot;
+    }
+
+    /** Adds a field to the index, growing the index if necessary. */
+    private void append(
+            final int fieldNumber, final int wireType,
+            final int valueOffset, final int valueLength) {
+        if (fieldCount == fieldNumbers.length) {
+            final int capacity = fieldCount * 2;
+            fieldNumbers = grow(fieldNumbers, capacity);
+            wireTypes = grow(wireTypes, capacity);
+            valueOffsets = grow(valueOffsets, capacity);
+            valueLengths = grow(valueLengths, capacity);
+        }
+        fieldNumbers[fieldCount] = fieldNumber;
+        wireTypes[fieldCount] = wireType;
+        valueOffsets[fieldCount] = valueOffset;
+        valueLengths[fieldCount] = valueLength;
+        fieldCount++;
+    }
+
+    private static int[] grow(final int[] array, final int capacity) {
+        final int[] grown = new int[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    /** Skips the contents of a group up to and including its end tag. */
+    private void skipGroup(final int end) throws InvalidProtocolBufferException {
+        int depth = 1;
+        while (depth > 0) {
+            final int wireType = (int) readRawVarint(end) & 7;
+            switch (wireType) {
+                case WIRETYPE_VARINT:
+                    readRawVarint(end);
+                    break;
+                case WIRETYPE_FIXED64:
+                    cursor += 8;
+                    break;
+                case WIRETYPE_LENGTH_DELIMITED:
+                    final int size = (int) readRawVarint(end);
+                    if (size < 0) {
+                        throw new InvalidProtocolBufferException(
+                                "Protocol message contained a negative length field.");
+                    }
+                    cursor += size;
+                    break;
+                case WIRETYPE_START_GROUP:
+                    depth++;
+                    break;
+                case WIRETYPE_END_GROUP:
+                    depth--;
+                    break;
+                case WIRETYPE_FIXED32:
+                    cursor += 4;
+                    break;
+                default:
+                    throw new InvalidProtocolBufferException(
+                            "Protocol message tag had invalid wire type.");
+            }
+            if (cursor > end || cursor < 0) {
+                throw new InvalidProtocolBufferException(
+                        "Protocol message field was truncated.");
+            }
+        }
+    }
+
+    /** Reads a varint at the cursor, checking it ends before {@code end}. */
+    private long readRawVarint(final int end) throws InvalidProtocolBufferException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (cursor < 0 || cursor >= end) {
+                throw new InvalidProtocolBufferException(
+                        "Protocol message field was truncated.");
+            }
+            final byte b = buffer.get(cursor++);
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new InvalidProtocolBufferException(
+                "Protocol message contained a malformed varint.");
+    }
+
+    /** Reads an indexed varint at the position {@code pos}. */
+    private long varintAt(int pos) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = buffer.get(pos++);
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /** Reads a little-endian 32-bit value at the position {@code pos}. */
+    private int fixed32At(final int pos) {
+        return (buffer.get(pos) & 0xFF)
+                | ((buffer.get(pos + 1) & 0xFF) << 8)
+                | ((buffer.get(pos + 2) & 0xFF) << 16)
+                | ((buffer.get(pos + 3) & 0xFF) << 24);
+    }
+
+    /** Copies bytes from the position {@code pos} of the buffer. */
+    private void copyTo(
+            final int pos, final byte[] destination,
+            final int destinationOffset, final int size) {
+        if (size == 0) {
+            return;
+        }
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + pos,
+                    destination, destinationOffset, size);
+        } else {
+            for (int i = 0; i < size; i++) {
+                destination[destinationOffset + i] = buffer.get(pos + i);
+            }
+        }
+    }
+
+}
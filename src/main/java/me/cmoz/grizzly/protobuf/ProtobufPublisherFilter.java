@@ -0,0 +1,370 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import com.google.protobuf.MessageLite;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.attributes.Attribute;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Exposes the decoded messages of each connection as a
+ * {@link MessageFlow.Publisher}, the filter is added after a protobuf filter.
+ * </p>
+ * Messages are sent to the subscriber of a connection as it requests them.
+ * Messages that arrive without demand are buffered, and once the buffer holds
+ * {@code prefetch} messages the read of the connection is suspended until the
+ * subscriber requests more. This gives backpressure from the subscriber to
+ * the peer without blocking a thread.
+ * </p>
+ * Flyweight views are only valid while they are read, a view is copied into a
+ * message with {@link ProtobufFlyweight#toMessage()} before it is buffered.
+ * </p>
+ * <b>Note</b> A suspended read is resumed on the thread that requests more
+ * messages, the messages already read from the connection are decoded and sent
+ * on that thread.
+ */
+@Slf4j
+public class ProtobufPublisherFilter extends BaseFilter {
+
+    /** The name of the attribute for the publisher of a connection. */
+    public static final String PUBLISHER_ATTR = "grizzly-protobuf-publisher";
+
+    /**
+     * Receives the publisher of each connection, to subscribe to it.
+     */
+    public interface PublisherHandler {
+
+        /**
+         * Receives the publisher of a new connection.
+         *
+         * @param connection The connection.
+         * @param publisher The publisher of the messages of the connection.
+         */
+        void onPublisher(
+                final Connection connection,
+                final MessageFlow.Publisher<MessageLite> publisher);
+
+    }
+
+    /** The maximum number of messages buffered without demand. */
+    @Getter
+    private final int prefetch;
+    /** The receiver of the publishers of the connections. */
+    private final PublisherHandler publisherHandler;
+    /** The attribute for the publisher of a connection. */
+    private final Attribute<ConnectionPublisher> publisherAttr =
+            Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute(PUBLISHER_ATTR);
+
+    /**
+     * A filter that publishes the messages of each connection.
+     *
+     * @param prefetch The maximum number of messages buffered without demand,
+     *                 before the reads of the connection are suspended.
+     * @param publisherHandler The receiver of the publishers of the
+     *                         connections.
+     */
+    public ProtobufPublisherFilter(
+            final int prefetch, final @NonNull PublisherHandler publisherHandler) {
+        if (prefetch < 1) {
+            throw new IllegalArgumentException("'prefetch' must be positive.");
+        }
+        this.prefetch = prefetch;
+        this.publisherHandler = publisherHandler;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public NextAction handleAccept(final FilterChainContext ctx) throws IOException {
+        publisher(ctx.getConnection());
+        return ctx.getInvokeAction();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public NextAction handleConnect(final FilterChainContext ctx) throws IOException {
+        publisher(ctx.getConnection());
+        return ctx.getInvokeAction();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public NextAction handleRead(final FilterChainContext ctx) throws IOException {
+        final Object message = ctx.getMessage();
+        if (!(message instanceof MessageLite)) {
+            return ctx.getInvokeAction();
+        }
+        if (message instanceof ProtobufFlyweight) {
+            // the view is repositioned over the next message of the input
+            return publisher(ctx.getConnection()).onMessage(
+                    ctx, ((ProtobufFlyweight) message).toMessage());
+        }
+        return publisher(ctx.getConnection()).onMessage(ctx, (MessageLite) message);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public NextAction handleClose(final FilterChainContext ctx) throws IOException {
+        final ConnectionPublisher publisher = publisherAttr.get(ctx.getConnection());
+        if (publisher != null) {
+            publisher.onClose();
+        }
+        return ctx.getInvokeAction();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void exceptionOccurred(final FilterChainContext ctx, final Throwable error) {
+        final ConnectionPublisher publisher = publisherAttr.get(ctx.getConnection());
+        if (publisher != null) {
+            publisher.onError(error);
+        }
+    }
+
+    /** The publisher of the connection, created on its first event. */
+    private ConnectionPublisher publisher(final Connection connection) {
+        ConnectionPublisher publisher = publisherAttr.get(connection);
+        if (publisher == null) {
+            publisher = new ConnectionPublisher(connection, prefetch);
+            publisherAttr.set(connection, publisher);
+            publisherHandler.onPublisher(connection, publisher);
+        }
+        return publisher;
+    }
+
+    /**
+     * The publisher of the messages of a single connection, with a single
+     * subscriber.
+     */
+    static final class ConnectionPublisher
+            implements MessageFlow.Publisher<MessageLite>, MessageFlow.Subscription {
+
+        /** The connection of the messages. */
+        private final Connection connection;
+        /** The maximum number of messages buffered without demand. */
+        private final int prefetch;
+        /** The messages waiting for demand. */
+        private final Queue<MessageLite> buffer;
+
+        /** The receiver of the messages, {@code null} until subscribed. */
+        private MessageFlow.Subscriber<? super MessageLite> subscriber;
+        /** The number of messages requested and not yet sent. */
+        private long demand;
+        /** The context of the read suspended for lack of demand. */
+        private FilterChainContext suspendedContext;
+        /** Whether messages are being sent to the subscriber. */
+        private boolean draining;
+        /** Whether the connection has closed. */
+        private boolean closed;
+        /** The error that ended the stream, may be {@code null}. */
+        private Throwable error;
+        /** Whether the subscriber was sent the end of the stream. */
+        private boolean terminated;
+
+        ConnectionPublisher(final Connection connection, final int prefetch) {
+            this.connection = connection;
+            this.prefetch = prefetch;
+            buffer = new ArrayDeque<MessageLite>(prefetch);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void subscribe(final @NonNull MessageFlow.Subscriber<? super MessageLite> subscriber) {
+            final boolean subscribed;
+            synchronized (this) {
+                subscribed = (this.subscriber == null);
+                if (subscribed) {
+                    this.subscriber = subscriber;
+                }
+            }
+            if (subscribed) {
+                subscriber.onSubscribe(this);
+                drain();
+                return;
+            }
+
+            subscriber.onSubscribe(new MessageFlow.Subscription() {
+                @Override
+                public void request(final long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Publisher already has a subscriber."));
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void request(final long n) {
+            if (n < 1) {
+                onError(new IllegalArgumentException("'n' must be positive."));
+                return;
+            }
+            synchronized (this) {
+                demand += n;
+                if (demand < 0) {
+                    demand = Long.MAX_VALUE;
+                }
+            }
+            drain();
+            resumeIfBelowPrefetch();
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                terminated = true;
+                buffer.clear();
+            }
+            resumeIfBelowPrefetch();
+            connection.closeSilently();
+        }
+
+        /**
+         * Publishes a message read from the connection, the read is suspended
+         * if the buffer is full.
+         */
+        NextAction onMessage(final FilterChainContext ctx, final MessageLite message) {
+            synchronized (this) {
+                if (terminated || (error != null)) {
+                    return ctx.getStopAction();
+                }
+                buffer.add(message);
+            }
+            drain();
+
+            synchronized (this) {
+                if (!terminated && !closed && (buffer.size() >= prefetch)) {
+                    log.debug("Suspending reads, bufferedMessages={}", buffer.size());
+                    suspendedContext = ctx;
+                    ctx.suspend();
+                    return ctx.getSuspendAction();
+                }
+            }
+            return ctx.getStopAction();
+        }
+
+        /**
+         * Ends the stream once the buffered messages are sent, the suspended
+         * read is completed as the connection reads no more.
+         */
+        void onClose() {
+            final FilterChainContext ctx;
+            synchronized (this) {
+                closed = true;
+                ctx = suspendedContext;
+                suspendedContext = null;
+            }
+            drain();
+            if (ctx != null) {
+                log.debug("Completing the suspended read of a closed connection.");
+                ctx.completeAndRecycle();
+            }
+        }
+
+        /** Ends the stream with an error, the suspended read is resumed. */
+        void onError(final Throwable throwable) {
+            synchronized (this) {
+                if (error == null) {
+                    error = throwable;
+                }
+                buffer.clear();
+            }
+            drain();
+            resumeIfBelowPrefetch();
+        }
+
+        /** Sends the messages there is demand for, and the end of the stream. */
+        private void drain() {
+            synchronized (this) {
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+
+            try {
+                while (true) {
+                    final MessageFlow.Subscriber<? super MessageLite> s;
+                    MessageLite message = null;
+                    Throwable throwable = null;
+                    synchronized (this) {
+                        s = subscriber;
+                        if ((s == null) || terminated) {
+                            draining = false;
+                            return;
+                        }
+                        if (error != null) {
+                            terminated = true;
+                            throwable = error;
+                        } else if (!buffer.isEmpty() && (demand > 0)) {
+                            message = buffer.poll();
+                            demand--;
+                        } else if (closed && buffer.isEmpty()) {
+                            terminated = true;
+                        } else {
+                            draining = false;
+                            return;
+                        }
+                    }
+
+                    if (message != null) {
+                        s.onNext(message);
+                    } else if (throwable != null) {
+                        s.onError(throwable);
+                    } else {
+                        s.onComplete();
+                    }
+                }
+            } catch (final RuntimeException e) {
+                synchronized (this) {
+                    draining = false;
+                }
+                throw e;
+            }
+        }
+
+        /** Resumes the suspended read once the buffer has space again. */
+        private void resumeIfBelowPrefetch() {
+            final FilterChainContext ctx;
+            synchronized (this) {
+                if ((suspendedContext == null) || (!terminated && (buffer.size() >= prefetch))) {
+                    return;
+                }
+                ctx = suspendedContext;
+                suspendedContext = null;
+            }
+            log.debug("Resuming reads.");
+            ctx.resume(ctx.getStopAction());
+        }
+
+    }
+
+}
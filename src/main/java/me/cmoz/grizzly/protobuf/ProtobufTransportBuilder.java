@@ -0,0 +1,377 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import com.google.protobuf.MessageLite;
+import org.glassfish.grizzly.IOStrategy;
+import org.glassfish.grizzly.filterchain.Filter;
+import org.glassfish.grizzly.filterchain.FilterChainBuilder;
+import org.glassfish.grizzly.filterchain.TransportFilter;
+import org.glassfish.grizzly.memory.MemoryManager;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
+import org.glassfish.grizzly.strategies.LeaderFollowerNIOStrategy;
+import org.glassfish.grizzly.strategies.SameThreadIOStrategy;
+import org.glassfish.grizzly.strategies.WorkerThreadIOStrategy;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Builds a {@link TCPNIOTransport} with a filter chain of a
+ * {@link TransportFilter}, a protobuf filter and the business handlers of the
+ * application.
+ * </p>
+ * The {@link IOStrategy} of the transport is chosen from the declared
+ * {@link HandlerProfile} of the handlers, and the kernel (selector) and
+ * worker thread pools are sized to match.
+ */
+@Slf4j
+public final class ProtobufTransportBuilder {
+
+    /** The pool name of the kernel threads. */
+    private static final String KERNEL_POOL_NAME = "grizzly-protobuf-kernel";
+    /** The pool name of the worker threads. */
+    private static final String WORKER_POOL_NAME = "grizzly-protobuf-worker";
+
+    /**
+     * The characteristics of the business handlers, which determine the
+     * threads the handlers are run on.
+     */
+    public enum HandlerProfile {
+
+        /**
+         * Handlers that never block and process small messages quickly, they
+         * run on the kernel thread that read the message.
+         */
+        NON_BLOCKING_SMALL_MESSAGES {
+            @Override
+            IOStrategy getStrategy() {
+                return SameThreadIOStrategy.getInstance();
+            }
+        },
+
+        /**
+         * Handlers that never block but do significant work per message, e.g.
+         * with large messages, the kernel thread hands the selector over to a
+         * worker thread and runs the handlers itself.
+         */
+        NON_BLOCKING_LARGE_MESSAGES {
+            @Override
+            IOStrategy getStrategy() {
+                return LeaderFollowerNIOStrategy.getInstance();
+            }
+        },
+
+        /**
+         * Handlers that may block, e.g. on a database or remote call, they run
+         * on worker threads so that the kernel threads are never blocked.
+         */
+        BLOCKING {
+            @Override
+            IOStrategy getStrategy() {
+                return WorkerThreadIOStrategy.getInstance();
+            }
+        };
+
+        /**
+         * The IO strategy for handlers with this profile.
+         *
+         * @return The IO strategy.
+         */
+        abstract IOStrategy getStrategy();
+
+    }
+
+    /** The protobuf filter for the filter chain. */
+    private final AbstractProtobufFilter protobufFilter;
+    /** The business handlers to add after the protobuf filter. */
+    private final List<Filter> handlers = new ArrayList<Filter>();
+    /** The builder for the transport, to set other transport options. */
+    @Getter
+    private final TCPNIOTransportBuilder transportBuilder =
+            TCPNIOTransportBuilder.newInstance();
+
+    /** The characteristics of the business handlers. */
+    private HandlerProfile handlerProfile = HandlerProfile.BLOCKING;
+    /** The number of kernel threads, or {@code 0} for the default. */
+    private int kernelThreads;
+    /** The number of worker threads, or {@code 0} for the default. */
+    private int workerThreads;
+    /** The number of warm-up iterations, or {@code 0} for no warm-up. */
+    private int warmUpIterations;
+    /** The messages to warm up the codec with. */
+    private MessageLite[] warmUpSamples = new MessageLite[0];
+
+    private ProtobufTransportBuilder(final AbstractProtobufFilter protobufFilter) {
+        this.protobufFilter = protobufFilter;
+    }
+
+    /**
+     * A transport builder for the supplied {@code protobufFilter}.
+     *
+     * @param protobufFilter The protobuf filter for the filter chain.
+     * @return The transport builder.
+     */
+    public static ProtobufTransportBuilder newInstance(
+            final @NonNull Varint32ProtobufFilter protobufFilter) {
+        return new ProtobufTransportBuilder(protobufFilter);
+    }
+
+    /**
+     * A transport builder for the supplied {@code protobufFilter}.
+     *
+     * @param protobufFilter The protobuf filter for the filter chain.
+     * @return The transport builder.
+     */
+    public static ProtobufTransportBuilder newInstance(
+            final @NonNull FixedLengthProtobufFilter protobufFilter) {
+        return new ProtobufTransportBuilder(protobufFilter);
+    }
+
+    /**
+     * Adds a business handler to the end of the filter chain.
+     *
+     * @param handler The handler for decoded messages.
+     * @return This builder.
+     */
+    public ProtobufTransportBuilder addHandler(final @NonNull Filter handler) {
+        handlers.add(handler);
+        return this;
+    }
+
+    /**
+     * Sets the characteristics of the business handlers, the default is
+     * {@link HandlerProfile#BLOCKING}.
+     *
+     * @param handlerProfile The characteristics of the business handlers.
+     * @return This builder.
+     */
+    public ProtobufTransportBuilder setHandlerProfile(
+            final @NonNull HandlerProfile handlerProfile) {
+        this.handlerProfile = handlerProfile;
+        return this;
+    }
+
+    /**
+     * Sets the number of kernel threads that run the selectors, the default is
+     * the number of available processors.
+     *
+     * @param kernelThreads The number of kernel threads.
+     * @return This builder.
+     */
+    public ProtobufTransportBuilder setKernelThreads(final int kernelThreads) {
+        if (kernelThreads < 1) {
+            throw new IllegalArgumentException("'kernelThreads' must be positive.");
+        }
+        this.kernelThreads = kernelThreads;
+        return this;
+    }
+
+    /**
+     * Sets the number of worker threads, ignored for handlers with the
+     * {@link HandlerProfile#NON_BLOCKING_SMALL_MESSAGES} profile which do not
+     * use worker threads.
+     *
+     * @param workerThreads The number of worker threads.
+     * @return This builder.
+     */
+    public ProtobufTransportBuilder setWorkerThreads(final int workerThreads) {
+        if (workerThreads < 1) {
+            throw new IllegalArgumentException("'workerThreads' must be positive.");
+        }
+        this.workerThreads = workerThreads;
+        return this;
+    }
+
+    /**
+     * Warms up the codec of the protobuf filter when the transport is built,
+     * before it is bound.
+     *
+     * @param iterations The number of times each sample is encoded and
+     *                   decoded.
+     * @param samples The messages to warm up with, if there are none a sample
+     *                is synthesized from the message type of the filter.
+     * @return This builder.
+     * @see AbstractProtobufFilter#warmUp(int, MessageLite...)
+     */
+    public ProtobufTransportBuilder setWarmUp(
+            final int iterations, final @NonNull MessageLite... samples) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("'iterations' must be positive.");
+        }
+        warmUpIterations = iterations;
+        warmUpSamples = samples.clone();
+        return this;
+    }
+
+    /**
+     * Sets the memory manager that buffers are allocated from.
+     *
+     * @param memoryManager The memory manager for the transport.
+     * @return This builder.
+     */
+    public ProtobufTransportBuilder setMemoryManager(
+            final @NonNull MemoryManager memoryManager) {
+        transportBuilder.setMemoryManager(memoryManager);
+        return this;
+    }
+
+    /**
+     * Sets the {@code TCP_NODELAY} socket option, disabling Nagle's algorithm
+     * so small messages are sent without delay.
+     *
+     * @param tcpNoDelay {@code true} to disable Nagle's algorithm.
+     * @return This builder.
+     */
+    public ProtobufTransportBuilder setTcpNoDelay(final boolean tcpNoDelay) {
+        transportBuilder.setTcpNoDelay(tcpNoDelay);
+        return this;
+    }
+
+    /**
+     * Sets the {@code SO_KEEPALIVE} socket option.
+     *
+     * @param keepAlive {@code true} to send keep-alive probes.
+     * @return This builder.
+     */
+    public ProtobufTransportBuilder setKeepAlive(final boolean keepAlive) {
+        transportBuilder.setKeepAlive(keepAlive);
+        return this;
+    }
+
+    /**
+     * Sets the {@code SO_REUSEADDR} socket option.
+     *
+     * @param reuseAddress {@code true} to allow the address to be reused.
+     * @return This builder.
+     */
+    public ProtobufTransportBuilder setReuseAddress(final boolean reuseAddress) {
+        transportBuilder.setReuseAddress(reuseAddress);
+        return this;
+    }
+
+    /**
+     * Sets the {@code SO_LINGER} socket option.
+     *
+     * @param linger The linger time in seconds, or {@code -1} to disable.
+     * @return This builder.
+     */
+    public ProtobufTransportBuilder setLinger(final int linger) {
+        transportBuilder.setLinger(linger);
+        return this;
+    }
+
+    /**
+     * Sets the size of the socket receive buffer and of the buffers read into.
+     *
+     * @param readBufferSize The read buffer size in bytes.
+     * @return This builder.
+     */
+    public ProtobufTransportBuilder setReadBufferSize(final int readBufferSize) {
+        transportBuilder.setReadBufferSize(readBufferSize);
+        return this;
+    }
+
+    /**
+     * Sets the size of the socket send buffer.
+     *
+     * @param writeBufferSize The write buffer size in bytes.
+     * @return This builder.
+     */
+    public ProtobufTransportBuilder setWriteBufferSize(final int writeBufferSize) {
+        transportBuilder.setWriteBufferSize(writeBufferSize);
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of bytes queued for writing on a connection.
+     *
+     * @param maxAsyncWriteQueueSize The maximum queue size in bytes, or
+     *                               {@code -1} for no limit.
+     * @return This builder.
+     */
+    public ProtobufTransportBuilder setMaxAsyncWriteQueueSize(
+            final int maxAsyncWriteQueueSize) {
+        transportBuilder.setMaxAsyncWriteQueueSizeInBytes(maxAsyncWriteQueueSize);
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of pending connections of a server socket.
+     *
+     * @param backlog The server connection backlog.
+     * @return This builder.
+     */
+    public ProtobufTransportBuilder setServerConnectionBacklog(final int backlog) {
+        transportBuilder.setServerConnectionBackLog(backlog);
+        return this;
+    }
+
+    /**
+     * Builds the transport, it must still be bound and started.
+     *
+     * @return The transport.
+     */
+    public TCPNIOTransport build() {
+        if (warmUpIterations > 0) {
+            protobufFilter.warmUp(warmUpIterations, warmUpSamples);
+        }
+
+        final FilterChainBuilder filterChainBuilder = FilterChainBuilder.stateless()
+                .add(new TransportFilter())
+                .add(protobufFilter);
+        for (final Filter handler : handlers) {
+            filterChainBuilder.add(handler);
+        }
+
+        final IOStrategy strategy = handlerProfile.getStrategy();
+        transportBuilder.setIOStrategy(strategy)
+                .setProcessor(filterChainBuilder.build());
+
+        if (kernelThreads > 0) {
+            transportBuilder.setSelectorThreadPoolConfig(ThreadPoolConfig.defaultConfig()
+                    .copy()
+                    .setPoolName(KERNEL_POOL_NAME)
+                    .setCorePoolSize(kernelThreads)
+                    .setMaxPoolSize(kernelThreads));
+        }
+        if (handlerProfile == HandlerProfile.NON_BLOCKING_SMALL_MESSAGES) {
+            transportBuilder.setWorkerThreadPoolConfig(null);
+        } else if (workerThreads > 0) {
+            transportBuilder.setWorkerThreadPoolConfig(ThreadPoolConfig.defaultConfig()
+                    .copy()
+                    .setPoolName(WORKER_POOL_NAME)
+                    .setCorePoolSize(workerThreads)
+                    .setMaxPoolSize(workerThreads));
+        }
+
+        final TCPNIOTransport transport = transportBuilder.build();
+        if (kernelThreads > 0) {
+            transport.setSelectorRunnersCount(kernelThreads);
+        }
+        log.debug("ioStrategy={}, kernelThreads={}, workerThreads={}",
+                strategy.getClass().getSimpleName(), kernelThreads, workerThreads);
+
+        return transport;
+    }
+
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import com.google.protobuf.MessageLite;
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.TransformationResult;
+import org.glassfish.grizzly.memory.Buffers;
+import org.glassfish.grizzly.memory.MemoryManager;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import sun.misc.Unsafe;
+
+/**
+ * Exchanges protobuf messages between two processes on the same host through
+ * a memory-mapped ring file, without the copies and system calls of a socket.
+ * </p>
+ * The ring has a single producer and a single consumer: one process writes
+ * messages to the ring and the other reads them, use a second ring file for
+ * messages in the other direction. Each message is stored in the ring with
+ * the same header as the filter it was opened with would send over a socket,
+ * and is read with the decoder of that filter.
+ * </p>
+ * The file starts with the capacity of the ring and the write and read
+ * indexes on separate cache lines, followed by the ring of records. A record
+ * is the length of the frame followed by the frame, aligned to 8 bytes, a
+ * record that does not fit before the end of the ring is preceded by a
+ * padding record.
+ * </p>
+ * The channel is used directly by the two processes, it is not a Grizzly
+ * transport and does not run a filter chain, only the codec of the filter.
+ * </p>
+ * <b>Note</b> Java 6 has no ordered accesses to a mapped buffer, the indexes
+ * are written with a release store and read with an acquire load through
+ * {@code sun.misc.Unsafe} on the address of the mapping, the channel cannot be
+ * opened on a JVM without it.
+ */
+@Slf4j
+public final class SharedMemoryProtobufChannel implements Closeable {
+
+    /** The marker at the start of a ring file. */
+    private static final int MAGIC = 0x47504231;
+    /** The offset of the marker. */
+    private static final int MAGIC_OFFSET = 0;
+    /** The offset of the ring capacity. */
+    private static final int CAPACITY_OFFSET = 4;
+    /** The offset of the write index, on its own cache lines. */
+    private static final int WRITE_INDEX_OFFSET = 128;
+    /** The offset of the read index, on its own cache lines. */
+    private static final int READ_INDEX_OFFSET = 256;
+    /** The offset of the ring of records. */
+    private static final int DATA_OFFSET = 384;
+
+    /** The length of the frame length stored before each frame. */
+    private static final int RECORD_HEADER_LENGTH = 4;
+    /** The alignment of the records. */
+    private static final int RECORD_ALIGNMENT = 8;
+    /** The frame length of a padding record. */
+    private static final int PADDING = -1;
+
+    /** The ordered memory accesses, {@code null} if they are not available. */
+    private static final Unsafe UNSAFE;
+    /** The offset of the address field of a direct buffer. */
+    private static final long ADDRESS_OFFSET;
+
+    static {
+        Unsafe unsafe = null;
+        long addressOffset = -1;
+        try {
+            final Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = (Unsafe) theUnsafe.get(null);
+            addressOffset = unsafe.objectFieldOffset(
+                    java.nio.Buffer.class.getDeclaredField("address"));
+        } catch (final Throwable t) {
+            log.info("Ordered accesses to mapped memory are not available, "
+                    + "shared memory channels cannot be opened.");
+            unsafe = null;
+        } finally {
+            UNSAFE = unsafe;
+            ADDRESS_OFFSET = addressOffset;
+        }
+    }
+
+    /**
+     * How a reader waits for a message and a writer waits for space in the
+     * ring.
+     */
+    public enum WaitStrategy {
+
+        /** Spins on the ring, the lowest latency at the cost of a core. */
+        BUSY_SPIN {
+            @Override
+            void idle() {
+                // spin
+            }
+        },
+
+        /** Yields the processor to other threads between checks. */
+        YIELD {
+            @Override
+            void idle() {
+                Thread.yield();
+            }
+        },
+
+        /**
+         * Parks the thread briefly between checks, the other process cannot
+         * wake a parked thread so this adds up to the park time of latency.
+         */
+        PARK {
+            @Override
+            void idle() {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        };
+
+        /** The time parked between checks of the ring. */
+        private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+        /** Waits before the ring is checked again. */
+        abstract void idle();
+
+    }
+
+    /** The encoder for the frames written to the ring. */
+    private final AbstractProtobufEncoder encoder;
+    /** The decoder for the frames read from the ring. */
+    private final AbstractProtobufDecoder decoder;
+    /** The codec state of the ring. */
+    private final DetachedAttributeStorage storage = new DetachedAttributeStorage();
+    /** The memory manager for encoded frames. */
+    private final MemoryManager memoryManager = MemoryManager.DEFAULT_MEMORY_MANAGER;
+
+    /** The file of the ring. */
+    private final RandomAccessFile file;
+    /** The mapped file of the ring. */
+    private final MappedByteBuffer mappedBuffer;
+    /** A view of the ring for the bulk writes of the producer. */
+    private final ByteBuffer writeView;
+    /** A view of the ring for the bulk reads of the consumer. */
+    private final ByteBuffer readView;
+    /** The size of the ring in bytes. */
+    @Getter
+    private final int capacity;
+    /** How to wait for messages and space in the ring. */
+    @Getter
+    private final WaitStrategy waitStrategy;
+
+    /** The written bytes, only changed by the producer. */
+    private long writeIndex;
+    /** The last read index seen by the producer. */
+    private long cachedReadIndex;
+    /** The read bytes, only changed by the consumer. */
+    private long readIndex;
+    /** The last write index seen by the consumer. */
+    private long cachedWriteIndex;
+    /** The copy of the last frame read. */
+    private byte[] frame = new byte[0];
+    /** The address of the mapped file of the ring. */
+    private final long address;
+
+    private SharedMemoryProtobufChannel(
+            final AbstractProtobufFilter protobufFilter, final File ringFile,
+            final int capacity, final WaitStrategy waitStrategy)
+            throws IOException {
+        if ((capacity < RECORD_ALIGNMENT) || (Integer.bitCount(capacity) != 1)) {
+            throw new IllegalArgumentException("'capacity' must be a power of two.");
+        }
+        if (UNSAFE == null) {
+            throw new UnsupportedOperationException(
+                    "Ordered accesses to mapped memory are not available.");
+        }
+        encoder = protobufFilter.getProtobufEncoder();
+        decoder = protobufFilter.getProtobufDecoder();
+        this.waitStrategy = waitStrategy;
+
+        file = new RandomAccessFile(ringFile, "rw");
+        try {
+            final FileChannel channel = file.getChannel();
+            final FileLock lock = channel.lock();
+            try {
+                if (file.length() == 0) {
+                    file.setLength(DATA_OFFSET + capacity);
+                    mappedBuffer = channel.map(
+                            FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + capacity);
+                    mappedBuffer.putInt(CAPACITY_OFFSET, capacity);
+                    mappedBuffer.putInt(MAGIC_OFFSET, MAGIC);
+                    mappedBuffer.force();
+                } else {
+                    mappedBuffer = channel.map(
+                            FileChannel.MapMode.READ_WRITE, 0, file.length());
+                    if (mappedBuffer.getInt(MAGIC_OFFSET) != MAGIC) {
+                        throw new IOException("Not a protobuf ring file: " + ringFile);
+                    }
+                    if (mappedBuffer.getInt(CAPACITY_OFFSET) != capacity) {
+                        throw new IOException("Ring file capacity is "
+                                + mappedBuffer.getInt(CAPACITY_OFFSET) + " bytes.");
+                    }
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (final IOException e) {
+            file.close();
+            throw e;
+        }
+        this.capacity = capacity;
+        address = UNSAFE.getLong(mappedBuffer, ADDRESS_OFFSET);
+        writeView = mappedBuffer.duplicate();
+        readView = mappedBuffer.duplicate();
+
+        writeIndex = getIndex(WRITE_INDEX_OFFSET);
+        readIndex = getIndex(READ_INDEX_OFFSET);
+        cachedReadIndex = readIndex;
+        cachedWriteIndex = writeIndex;
+        log.debug("ringFile={}, capacity={}", ringFile, capacity);
+    }
+
+    /**
+     * Opens the ring file, it is created if it does not exist.
+     *
+     * @param protobufFilter The filter whose header format and decoder the
+     *                       ring uses.
+     * @param ringFile The file of the ring, shared by the two processes.
+     * @param capacity The size of the ring in bytes, a power of two.
+     * @param waitStrategy How to wait for messages and space in the ring.
+     * @return The channel.
+     * @throws IOException If the file could not be opened.
+     */
+    public static SharedMemoryProtobufChannel open(
+            final @NonNull Varint32ProtobufFilter protobufFilter,
+            final @NonNull File ringFile, final int capacity,
+            final @NonNull WaitStrategy waitStrategy)
+            throws IOException {
+        return new SharedMemoryProtobufChannel(protobufFilter, ringFile, capacity, waitStrategy);
+    }
+
+    /**
+     * Opens the ring file, it is created if it does not exist.
+     *
+     * @param protobufFilter The filter whose header format and decoder the
+     *                       ring uses.
+     * @param ringFile The file of the ring, shared by the two processes.
+     * @param capacity The size of the ring in bytes, a power of two.
+     * @param waitStrategy How to wait for messages and space in the ring.
+     * @return The channel.
+     * @throws IOException If the file could not be opened.
+     */
+    public static SharedMemoryProtobufChannel open(
+            final @NonNull FixedLengthProtobufFilter protobufFilter,
+            final @NonNull File ringFile, final int capacity,
+            final @NonNull WaitStrategy waitStrategy)
+            throws IOException {
+        return new SharedMemoryProtobufChannel(protobufFilter, ringFile, capacity, waitStrategy);
+    }
+
+    /**
+     * Writes the supplied {@code message} to the ring, waiting for space in
+     * the ring if it is full. Only the producer may write to the ring.
+     *
+     * @param message The protobuf message to write.
+     * @throws IOException If the message does not fit in the ring, or the
+     *                     thread was interrupted.
+     */
+    public void write(final @NonNull MessageLite message) throws IOException {
+        final TransformationResult<MessageLite, Buffer> result =
+                encoder.transform(storage, message);
+        if (result.getStatus() != TransformationResult.Status.COMPLETE) {
+            final String errorDescription = result.getErrorDescription();
+            result.recycle();
+            throw new IOException("Error encoding message: " + errorDescription);
+        }
+        final Buffer frameBuffer = result.getMessage();
+        result.recycle();
+        try {
+            final int frameLength = frameBuffer.remaining();
+            final int recordLength = align(RECORD_HEADER_LENGTH + frameLength);
+            if (recordLength > capacity) {
+                // the delta state has moved on, the next messages start over
+                // with keyframes so the consumer stays in step
+                storage.getAttributes().removeAttribute(AbstractProtobufEncoder.DELTA_STATE_ATTR);
+                throw new IOException("Message of " + frameLength
+                        + " bytes does not fit in the ring.");
+            }
+
+            int pos = (int) (writeIndex & (capacity - 1));
+            final int tail = capacity - pos;
+            if (recordLength > tail) {
+                // the consumer skips the padding and frees the start of the
+                // ring, so the record is written once the padding is published
+                awaitSpace(tail);
+                mappedBuffer.putInt(DATA_OFFSET + pos, PADDING);
+                writeIndex += tail;
+                putIndex(WRITE_INDEX_OFFSET, writeIndex);
+                pos = 0;
+            }
+            awaitSpace(recordLength);
+
+            mappedBuffer.putInt(DATA_OFFSET + pos, frameLength);
+            writeView.limit(DATA_OFFSET + pos + RECORD_HEADER_LENGTH + frameLength);
+            writeView.position(DATA_OFFSET + pos + RECORD_HEADER_LENGTH);
+            writeView.put(frameBuffer.toByteBuffer());
+
+            writeIndex += recordLength;
+            putIndex(WRITE_INDEX_OFFSET, writeIndex);
+        } finally {
+            frameBuffer.tryDispose();
+        }
+    }
+
+    /**
+     * Reads the next message from the ring, waiting for a message if the ring
+     * is empty. Only the consumer may read from the ring.
+     *
+     * @return The decoded message.
+     * @throws IOException If the record is corrupt, the message could not be
+     *                     decoded, or the thread was interrupted.
+     */
+    public MessageLite read() throws IOException {
+        MessageLite message;
+        while ((message = poll()) == null) {
+            idle();
+        }
+        return message;
+    }
+
+    /**
+     * Reads the next message from the ring, if there is one. Only the
+     * consumer may read from the ring.
+     *
+     * @return The decoded message, or {@code null} if the ring is empty.
+     * @throws IOException If the record is corrupt, or the message could not
+     *                     be decoded.
+     */
+    public MessageLite poll() throws IOException {
+        int pos;
+        int frameLength;
+        while (true) {
+            if (readIndex == cachedWriteIndex) {
+                cachedWriteIndex = getIndex(WRITE_INDEX_OFFSET);
+                if (readIndex == cachedWriteIndex) {
+                    return null;
+                }
+            }
+
+            pos = (int) (readIndex & (capacity - 1));
+            frameLength = mappedBuffer.getInt(DATA_OFFSET + pos);
+            if (frameLength != PADDING) {
+                break;
+            }
+            // the producer may be waiting for the space of the padding
+            readIndex += capacity - pos;
+            putIndex(READ_INDEX_OFFSET, readIndex);
+        }
+        if ((frameLength < 0) || (frameLength > capacity - pos - RECORD_HEADER_LENGTH)) {
+            throw new IOException("Corrupt record in the ring, frame length is "
+                    + frameLength + " bytes at position " + pos + ".");
+        }
+
+        if (frame.length < frameLength) {
+            frame = new byte[frameLength];
+        }
+        readView.limit(DATA_OFFSET + pos + RECORD_HEADER_LENGTH + frameLength);
+        readView.position(DATA_OFFSET + pos + RECORD_HEADER_LENGTH);
+        readView.get(frame, 0, frameLength);
+
+        readIndex += align(RECORD_HEADER_LENGTH + frameLength);
+        putIndex(READ_INDEX_OFFSET, readIndex);
+
+        final TransformationResult<Buffer, MessageLite> result = decoder.transform(
+                storage, Buffers.wrap(memoryManager, frame, 0, frameLength));
+        try {
+            if (result.getStatus() != TransformationResult.Status.COMPLETE) {
+                throw new IOException("Malformed frame in the ring: "
+                        + result.getErrorDescription());
+            }
+            return result.getMessage();
+        } finally {
+            result.recycle();
+        }
+    }
+
+    /**
+     * Closes the ring file, the ring stays mapped until it is garbage
+     * collected.
+     *
+     * @throws IOException If the file could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /** Waits until the ring has {@code length} free bytes. */
+    private void awaitSpace(final int length) throws InterruptedIOException {
+        while (capacity - (writeIndex - cachedReadIndex) < length) {
+            cachedReadIndex = getIndex(READ_INDEX_OFFSET);
+            if (capacity - (writeIndex - cachedReadIndex) < length) {
+                idle();
+            }
+        }
+    }
+
+    private void idle() throws InterruptedIOException {
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException("Interrupted waiting on the ring.");
+        }
+        waitStrategy.idle();
+    }
+
+    /** Reads an index with acquire semantics, the ring is read after the index. */
+    private long getIndex(final int offset) {
+        return UNSAFE.getLongVolatile(null, address + offset);
+    }
+
+    /** Writes an index with release semantics, the ring is written before the index. */
+    private void putIndex(final int offset, final long index) {
+        UNSAFE.putOrderedLong(null, address + offset, index);
+    }
+
+    private static int align(final int length) {
+        return (length + RECORD_ALIGNMENT - 1) & -RECORD_ALIGNMENT;
+    }
+
+}
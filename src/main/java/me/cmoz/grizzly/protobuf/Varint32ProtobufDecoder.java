@@ -15,11 +15,9 @@
  */
 package me.cmoz.grizzly.protobuf;
 
-import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.ExtensionRegistryLite;
 import com.google.protobuf.MessageLite;
 import org.glassfish.grizzly.Buffer;
-import org.glassfish.grizzly.utils.BufferInputStream;
 
 import java.io.IOException;
 
@@ -33,6 +31,9 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class Varint32ProtobufDecoder extends AbstractProtobufDecoder {
 
+    /** The maximum size of a {@code Varint32} encoded header. */
+    private static final int MAX_VARINT32_SIZE = 5;
+
     /**
      * A protobuf decoder that uses a {@code Varint32} encoded header to
      * determine the size of a message to be decoded.
@@ -54,8 +55,29 @@ public class Varint32ProtobufDecoder extends AbstractProtobufDecoder {
             throw new IllegalArgumentException("'input' cannot be null.");
         }
 
-        final BufferInputStream inputStream = new BufferInputStream(input);
-        return CodedInputStream.readRawVarint32(input.get(), inputStream);
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final byte b = input.get();
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint32 header.");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isHeaderComplete(final Buffer input) {
+        final int pos = input.position();
+        final int end = Math.min(input.limit(), pos + MAX_VARINT32_SIZE);
+        for (int i = pos; i < end; i++) {
+            if (input.get(i) >= 0) {
+                return true;
+            }
+        }
+        // a malformed header is complete, it fails when read
+        return end - pos == MAX_VARINT32_SIZE;
     }
 
     /** {@inheritDoc} */
@@ -41,12 +41,22 @@ public class Varint32ProtobufEncoder extends AbstractProtobufEncoder {
         if (messageLength < 0) {
             throw new IllegalArgumentException("'messageLength' cannot be negative.");
         }
-        log.debug("encodedMessageLength={}", messageLength);
+        if (log.isDebugEnabled()) {
+            log.debug("encodedMessageLength={}", messageLength);
+        }
+
+        int value = messageLength;
+        while ((value & ~0x7F) != 0) {
+            outputStream.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        outputStream.write(value);
+    }
 
-        final CodedOutputStream codedOutputStream =
-                CodedOutputStream.newInstance(outputStream);
-        codedOutputStream.writeRawVarint32(messageLength);
-        codedOutputStream.flush();
+    /** {@inheritDoc} */
+    @Override
+    public int getHeaderLength(final int messageLength) {
+        return CodedOutputStream.computeRawVarint32Size(messageLength);
     }
 
     /** {@inheritDoc} */
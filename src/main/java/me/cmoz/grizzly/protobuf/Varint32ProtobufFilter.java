@@ -17,8 +17,6 @@ package me.cmoz.grizzly.protobuf;
 
 import com.google.protobuf.ExtensionRegistryLite;
 import com.google.protobuf.MessageLite;
-import org.glassfish.grizzly.Buffer;
-import org.glassfish.grizzly.filterchain.AbstractCodecFilter;
 
 import lombok.NonNull;
 
@@ -26,7 +24,7 @@ import lombok.NonNull;
  * A filter for Google's Protocol Buffers serialization format that uses a
  * {@code Varint32} encoding to store the length of the encoded message.
  */
-public class Varint32ProtobufFilter extends AbstractCodecFilter<Buffer, MessageLite> {
+public class Varint32ProtobufFilter extends AbstractProtobufFilter {
 
     /**
      * A Protocol Buffers filter that uses a {@code Varint32} encoding for the
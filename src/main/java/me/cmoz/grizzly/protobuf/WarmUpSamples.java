@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageLite;
+
+/**
+ * Synthesizes sample messages to warm up a codec with, every field of a
+ * sample is set so that the classes of all the nested message types are
+ * loaded and their parsing code is run.
+ */
+final class WarmUpSamples {
+
+    /** The depth of nested messages that are set in a sample. */
+    private static final int MAX_DEPTH = 4;
+    /** The value of the string and bytes fields of a sample. */
+    private static final String SAMPLE_STRING = "grizzly-protobuf";
+
+    private WarmUpSamples() {
+    }
+
+    /**
+     * A sample message of the type of the supplied {@code prototype}.
+     * </p>
+     * <b>Note</b> The fields can only be set on full {@link Message} types,
+     * the default instance is the sample of a lite message type.
+     *
+     * @param prototype The base protocol buffers serialization unit.
+     * @return The sample message.
+     */
+    static MessageLite synthesize(final MessageLite prototype) {
+        if (!(prototype instanceof Message)) {
+            return prototype.getDefaultInstanceForType();
+        }
+        return synthesize(((Message) prototype).newBuilderForType(), 0);
+    }
+
+    private static Message synthesize(final Message.Builder builder, final int depth) {
+        for (final Descriptors.FieldDescriptor field
+                : builder.getDescriptorForType().getFields()) {
+            final Object value;
+            switch (field.getJavaType()) {
+                case INT:
+                    value = 1;
+                    break;
+                case LONG:
+                    value = 1L;
+                    break;
+                case FLOAT:
+                    value = 1f;
+                    break;
+                case DOUBLE:
+                    value = 1d;
+                    break;
+                case BOOLEAN:
+                    value = Boolean.TRUE;
+                    break;
+                case STRING:
+                    value = SAMPLE_STRING;
+                    break;
+                case BYTE_STRING:
+                    value = ByteString.copyFromUtf8(SAMPLE_STRING);
+                    break;
+                case ENUM:
+                    value = field.getEnumType().getValues().get(0);
+                    break;
+                case MESSAGE:
+                    if (depth >= MAX_DEPTH) {
+                        continue;
+                    }
+                    value = synthesize(builder.newBuilderForField(field), depth + 1);
+                    break;
+                default:
+                    continue;
+            }
+
+            if (field.isRepeated()) {
+                builder.addRepeatedField(field, value);
+            } else {
+                builder.setField(field, value);
+            }
+        }
+        return builder.buildPartial();
+    }
+
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import com.google.protobuf.MessageLite;
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.TransformationResult;
+import org.glassfish.grizzly.attributes.AttributeHolder;
+import org.glassfish.grizzly.attributes.AttributeStorage;
+import org.glassfish.grizzly.attributes.IndexedAttributeHolder;
+import org.glassfish.grizzly.memory.Buffers;
+import org.glassfish.grizzly.memory.HeapMemoryManager;
+import org.glassfish.grizzly.utils.BufferOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.spi.LocationAwareLogger;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The bytes allocated per message on the encode and decode paths of the
+ * {@link me.cmoz.grizzly.protobuf.Varint32ProtobufFilter} and the
+ * {@link me.cmoz.grizzly.protobuf.FixedLengthProtobufFilter} codecs.
+ */
+public class AllocationBudgetTest {
+
+    /** The number of messages run through a path before it is measured. */
+    private static final int WARM_UP_ITERATIONS = 20000;
+    /** The number of messages a path is measured over. */
+    private static final int ITERATIONS = 10000;
+
+    /** The bytes allocated per message to read and write a header. */
+    private static final long FRAMING_BUDGET = 8;
+    /** The bytes allocated per message to decode a frame, excluding the message. */
+    private static final long DECODING_BUDGET = 64;
+    /** The bytes allocated per message to decode a frame as a flyweight view. */
+    private static final long FLYWEIGHT_DECODING_BUDGET = 8;
+    /** The bytes allocated per message to encode a frame. */
+    private static final long ENCODING_BUDGET = 256;
+
+    /** The classes whose loggers are raised to info while the codecs are measured. */
+    private static final Class<?>[] CODEC_CLASSES = {
+            AbstractProtobufDecoder.class, AbstractProtobufEncoder.class,
+            Varint32ProtobufDecoder.class, Varint32ProtobufEncoder.class,
+            FixedLengthProtobufDecoder.class, FixedLengthProtobufEncoder.class };
+
+    /** The message run through the codecs. */
+    private static final Proto.User USER = Proto.User.newBuilder()
+            .setName("Albert Einstein")
+            .setEmail("albert.einstein@gmail.com")
+            .addPhone(Proto.User.PhoneNumber.newBuilder().setNumber("555-4321"))
+            .build();
+
+    /** The heap usage of a parsed message, measured once per test. */
+    private long messageAllocation;
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+    private AttributeStorage storage;
+    private HeapMemoryManager memoryManager;
+    /** The levels of the codec loggers before they were raised. */
+    private final Map<Logger, Integer> savedLogLevels = new IdentityHashMap<Logger, Integer>();
+
+    @Before
+    public void setUp() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        // the budgets measure the codecs, not the formatting of debug logs
+        for (final Class<?> codecClass : CODEC_CLASSES) {
+            raiseLogLevel(LoggerFactory.getLogger(codecClass));
+        }
+
+        final AttributeHolder holder =
+                new IndexedAttributeHolder(Grizzly.DEFAULT_ATTRIBUTE_BUILDER);
+        storage = new AttributeStorage() {
+            @Override
+            public AttributeHolder getAttributes() {
+                return holder;
+            }
+        };
+        memoryManager = new HeapMemoryManager();
+
+        final byte[] bytes = USER.toByteArray();
+        messageAllocation = allocatedPerMessage(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Proto.User.PARSER.parseFrom(bytes);
+                } catch (final IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IllegalAccessException {
+        for (final Map.Entry<Logger, Integer> entry : savedLogLevels.entrySet()) {
+            logLevelField(entry.getKey()).setInt(entry.getKey(), entry.getValue());
+        }
+        savedLogLevels.clear();
+    }
+
+    @Test
+    public void varint32FramingTest() {
+        assertFramingBudget(new Varint32ProtobufEncoder(),
+                new Varint32ProtobufDecoder(USER, null));
+    }
+
+    @Test
+    public void fixedLengthFramingTest() {
+        assertFramingBudget(new FixedLengthProtobufEncoder(4),
+                new FixedLengthProtobufDecoder(USER, null, 4));
+    }
+
+    @Test
+    public void varint32DecodingTest() {
+        assertDecodingBudget(new Varint32ProtobufEncoder(),
+                new Varint32ProtobufDecoder(USER, null), false,
+                messageAllocation + DECODING_BUDGET);
+    }
+
+    @Test
+    public void fixedLengthDecodingTest() {
+        assertDecodingBudget(new FixedLengthProtobufEncoder(4),
+                new FixedLengthProtobufDecoder(USER, null, 4), false,
+                messageAllocation + DECODING_BUDGET);
+    }
+
+    @Test
+    public void flyweightDecodingTest() {
+        assertDecodingBudget(new Varint32ProtobufEncoder(),
+                new Varint32ProtobufDecoder(USER, null), true,
+                FLYWEIGHT_DECODING_BUDGET);
+    }
+
+    @Test
+    public void varint32EncodingTest() {
+        assertEncodingBudget(new Varint32ProtobufEncoder());
+    }
+
+    @Test
+    public void fixedLengthEncodingTest() {
+        assertEncodingBudget(new FixedLengthProtobufEncoder(4));
+    }
+
+    private void assertFramingBudget(
+            final AbstractProtobufEncoder encoder,
+            final AbstractProtobufDecoder decoder) {
+        final int messageLength = USER.getSerializedSize();
+        final Buffer buffer = memoryManager.allocate(16);
+        final BufferOutputStream outputStream = new BufferOutputStream(memoryManager);
+
+        final long allocated = allocatedPerMessage(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    buffer.clear();
+                    outputStream.reset();
+                    outputStream.setInitialOutputBuffer(buffer);
+                    encoder.writeHeader(outputStream, messageLength);
+                    buffer.flip();
+
+                    assertTrue(decoder.isHeaderComplete(buffer));
+                    assertEquals(messageLength, decoder.readHeader(buffer));
+                } catch (final IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        assertBudget("framing", FRAMING_BUDGET, allocated);
+    }
+
+    private void assertDecodingBudget(
+            final AbstractProtobufEncoder encoder,
+            final AbstractProtobufDecoder decoder, final boolean flyweight,
+            final long budget) {
+        final Buffer frame = encoder.transform(storage, USER).getMessage();
+        final Buffer input = Buffers.wrap(memoryManager, frame.toByteBuffer());
+        decoder.setMemoryManager(memoryManager);
+        decoder.setFlyweight(flyweight);
+
+        final long allocated = allocatedPerMessage(new Runnable() {
+            @Override
+            public void run() {
+                input.position(0);
+                final TransformationResult<Buffer, MessageLite> result =
+                        decoder.transform(storage, input);
+                assertEquals(TransformationResult.Status.COMPLETE, result.getStatus());
+                result.recycle();
+            }
+        });
+        assertBudget("decoding", budget, allocated);
+    }
+
+    private void assertEncodingBudget(final AbstractProtobufEncoder encoder) {
+        encoder.setMemoryManager(memoryManager);
+
+        final long allocated = allocatedPerMessage(new Runnable() {
+            @Override
+            public void run() {
+                final TransformationResult<MessageLite, Buffer> result =
+                        encoder.transform(storage, USER);
+                assertEquals(TransformationResult.Status.COMPLETE, result.getStatus());
+                result.getMessage().tryDispose();
+                result.recycle();
+            }
+        });
+        assertBudget("encoding", ENCODING_BUDGET, allocated);
+    }
+
+    private void assertBudget(final String path, final long budget, final long allocated) {
+        assertTrue(String.format("%s allocated %d bytes per message, the budget is %d.",
+                path, allocated, budget), allocated <= budget);
+    }
+
+    /** The bytes allocated by the current thread for each run of the {@code path}. */
+    private long allocatedPerMessage(final Runnable path) {
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            path.run();
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        final long start = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            path.run();
+        }
+        final long end = threadMXBean.getThreadAllocatedBytes(threadId);
+
+        return (end - start) / ITERATIONS;
+    }
+
+    /**
+     * Raises the level of a slf4j-simple logger to info, other bindings must
+     * already have debug logging off.
+     */
+    private void raiseLogLevel(final Logger logger) {
+        final Field field = logLevelField(logger);
+        if (field == null) {
+            assumeTrue(!logger.isDebugEnabled());
+            return;
+        }
+        try {
+            final int level = field.getInt(logger);
+            if (level < LocationAwareLogger.INFO_INT) {
+                savedLogLevels.put(logger, level);
+                field.setInt(logger, LocationAwareLogger.INFO_INT);
+            }
+        } catch (final IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** The level field of a slf4j-simple logger, or {@code null}. */
+    private static Field logLevelField(final Logger logger) {
+        for (Class<?> type = logger.getClass(); type != null; type = type.getSuperclass()) {
+            try {
+                final Field field = type.getDeclaredField("currentLogLevel");
+                field.setAccessible(true);
+                return field;
+            } catch (final NoSuchFieldException e) {
+                // try the superclass
+            }
+        }
+        return null;
+    }
+
+}
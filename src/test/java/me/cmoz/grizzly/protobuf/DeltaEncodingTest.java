@@ -0,0 +1,193 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.FilterChainBuilder;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.glassfish.grizzly.filterchain.TransportFilter;
+import org.glassfish.grizzly.nio.NIOTransport;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
+import org.glassfish.grizzly.utils.DataStructures;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link me.cmoz.grizzly.protobuf.DeltaEncoding}.
+ */
+public class DeltaEncodingTest {
+
+    /** The port for the local test. */
+    private static final int PORT = 20394;
+    /** The number of messages echoed through the transport. */
+    private static final int MESSAGES = 20;
+
+    /** The first message of the stream. */
+    private static final Proto.User USER = Proto.User.newBuilder()
+            .setName("Albert Einstein")
+            .setEmail("albert.einstein@gmail.com")
+            .addPhone(
+                    Proto.User.PhoneNumber.newBuilder()
+                            .setNumber("555-4321")
+                            .setType(Proto.User.PhoneType.HOME))
+            .build();
+
+    @Test
+    public void deltaRoundTripTest() throws IOException {
+        final DeltaEncoding deltaEncoding = new DeltaEncoding(2);
+        final DeltaEncoding.State sent = new DeltaEncoding.State();
+        final DeltaEncoding.State received = new DeltaEncoding.State();
+
+        final Proto.User changed = USER.toBuilder()
+                .setEmail("albert@example.com")
+                .build();
+        final Proto.User cleared = changed.toBuilder()
+                .clearPhone()
+                .build();
+
+        final byte[] keyframe = deltaEncoding.encode(sent, USER.toByteArray());
+        assertEquals(USER, Proto.User.parseFrom(deltaEncoding.decode(received, keyframe)));
+
+        final byte[] delta = deltaEncoding.encode(sent, changed.toByteArray());
+        assertTrue(delta.length < changed.getSerializedSize());
+        assertEquals(changed, Proto.User.parseFrom(deltaEncoding.decode(received, delta)));
+
+        final byte[] clearedDelta = deltaEncoding.encode(sent, cleared.toByteArray());
+        assertTrue(clearedDelta.length < cleared.getSerializedSize());
+        assertEquals(cleared, Proto.User.parseFrom(deltaEncoding.decode(received, clearedDelta)));
+
+        // the keyframe interval has been reached
+        final byte[] nextKeyframe = deltaEncoding.encode(sent, USER.toByteArray());
+        assertEquals(USER.getSerializedSize() + 1, nextKeyframe.length);
+        assertEquals(USER, Proto.User.parseFrom(deltaEncoding.decode(received, nextKeyframe)));
+    }
+
+    @Test
+    public void keyedDeltaTest() throws IOException {
+        final DeltaEncoding deltaEncoding =
+                new DeltaEncoding(10, Proto.User.NAME_FIELD_NUMBER);
+        final DeltaEncoding.State sent = new DeltaEncoding.State();
+        final DeltaEncoding.State received = new DeltaEncoding.State();
+
+        final Proto.User other = Proto.User.newBuilder()
+                .setName("Niels Bohr")
+                .setEmail("niels.bohr@gmail.com")
+                .build();
+
+        for (final Proto.User user : new Proto.User[] { USER, other, USER, other }) {
+            final byte[] payload = deltaEncoding.encode(sent, user.toByteArray());
+            assertArrayEquals(user.toByteArray(), deltaEncoding.decode(received, payload));
+        }
+
+        final Proto.User changed = other.toBuilder()
+                .addPhone(Proto.User.PhoneNumber.newBuilder().setNumber("555-1234"))
+                .build();
+        final byte[] delta = deltaEncoding.encode(sent, changed.toByteArray());
+        assertTrue(delta.length < changed.getSerializedSize());
+        assertEquals(changed, Proto.User.parseFrom(deltaEncoding.decode(received, delta)));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void deltaTransportTest()
+            throws IOException, InterruptedException, ExecutionException {
+        final Varint32ProtobufFilter serverProtobufFilter =
+                new Varint32ProtobufFilter(Proto.User.getDefaultInstance());
+        serverProtobufFilter.setDeltaEncoding(4);
+        final NIOTransport transport = TCPNIOTransportBuilder.newInstance()
+                .setProcessor(FilterChainBuilder.stateless()
+                        .add(new TransportFilter())
+                        .add(serverProtobufFilter)
+                        .add(new EchoFilter())
+                        .build())
+                .build();
+
+        Connection connection = null;
+        try {
+            transport.bind(PORT);
+            transport.start();
+
+            connection = transport.connect("localhost", PORT).get();
+
+            final BlockingQueue<Proto.User> resultQueue =
+                    DataStructures.getLTQInstance(Proto.User.class);
+            final Varint32ProtobufFilter clientProtobufFilter =
+                    new Varint32ProtobufFilter(Proto.User.getDefaultInstance());
+            clientProtobufFilter.setDeltaEncoding(4);
+            connection.setProcessor(FilterChainBuilder.stateless()
+                    .add(new TransportFilter())
+                    .add(clientProtobufFilter)
+                    .add(new QueueFilter(resultQueue))
+                    .build());
+
+            // the deltas and keyframes are both sent on each side
+            for (int i = 0; i < MESSAGES; i++) {
+                final Proto.User.Builder builder = USER.toBuilder()
+                        .setEmail("albert" + i + "@example.com");
+                if (i % 3 == 0) {
+                    builder.clearPhone();
+                }
+                final Proto.User user = builder.build();
+
+                connection.write(user);
+                assertEquals(user, resultQueue.poll(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            if (connection != null)
+                connection.close();
+
+            transport.stop();
+        }
+    }
+
+    private static class EchoFilter extends BaseFilter {
+
+        public NextAction handleRead(final FilterChainContext context)
+                throws IOException {
+            context.write(context.getMessage());
+            return context.getStopAction();
+        }
+
+    }
+
+    private static class QueueFilter extends BaseFilter {
+
+        /** A storage queue to send the read messages to. */
+        private final BlockingQueue<Proto.User> resultQueue;
+
+        public QueueFilter(final BlockingQueue<Proto.User> resultQueue) {
+            this.resultQueue = resultQueue;
+        }
+
+        public NextAction handleRead(final FilterChainContext context)
+                throws IOException {
+            resultQueue.add((Proto.User) context.getMessage());
+            return context.getStopAction();
+        }
+
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.UnknownFieldSet;
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.TransformationResult;
+import org.glassfish.grizzly.attributes.AttributeHolder;
+import org.glassfish.grizzly.attributes.AttributeStorage;
+import org.glassfish.grizzly.attributes.IndexedAttributeHolder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link me.cmoz.grizzly.protobuf.FieldFilter}.
+ */
+public class FieldFilterTest {
+
+    /** The number of a field that is not declared for the message types. */
+    private static final int UNKNOWN_FIELD_NUMBER = 15;
+
+    /** The message without unknown fields. */
+    private static final Proto.User USER = Proto.User.newBuilder()
+            .setName("Albert Einstein")
+            .setEmail("albert.einstein@gmail.com")
+            .addPhone(Proto.User.PhoneNumber.newBuilder().setNumber("555-4321"))
+            .build();
+
+    private AttributeStorage storage;
+
+    @Before
+    public void setUp() {
+        final AttributeHolder holder =
+                new IndexedAttributeHolder(Grizzly.DEFAULT_ATTRIBUTE_BUILDER);
+        storage = new AttributeStorage() {
+            @Override
+            public AttributeHolder getAttributes() {
+                return holder;
+            }
+        };
+    }
+
+    @Test
+    public void discardUnknownFieldsTest() {
+        final UnknownFieldSet unknownFields = UnknownFieldSet.newBuilder()
+                .addField(UNKNOWN_FIELD_NUMBER,
+                        UnknownFieldSet.Field.newBuilder().addVarint(42).build())
+                .build();
+        final Proto.User user = Proto.User.newBuilder(USER)
+                .setUnknownFields(unknownFields)
+                .setPhone(0, Proto.User.PhoneNumber.newBuilder(USER.getPhone(0))
+                        .setUnknownFields(unknownFields))
+                .build();
+
+        final Varint32ProtobufDecoder decoder = new Varint32ProtobufDecoder(USER, null);
+        assertEquals(user, decode(decoder, user));
+
+        decoder.setDiscardUnknownFields(true);
+        final Proto.User result = (Proto.User) decode(decoder, user);
+        assertEquals(USER, result);
+        assertTrue(result.getUnknownFields().asMap().isEmpty());
+        assertTrue(result.getPhone(0).getUnknownFields().asMap().isEmpty());
+    }
+
+    @Test
+    public void fieldProjectionTest() {
+        final Varint32ProtobufDecoder decoder = new Varint32ProtobufDecoder(USER, null);
+        decoder.setFieldProjection(Proto.User.EMAIL_FIELD_NUMBER);
+
+        final Proto.User result = (Proto.User) decode(decoder, USER);
+        assertEquals(USER.getEmail(), result.getEmail());
+        assertFalse(result.hasName());
+        assertEquals(0, result.getPhoneCount());
+
+        decoder.setFieldProjection(null);
+        assertEquals(USER, decode(decoder, USER));
+    }
+
+    @Test
+    public void recursiveMessageTest() {
+        final UnknownFieldSet unknownFields = UnknownFieldSet.newBuilder()
+                .addField(UNKNOWN_FIELD_NUMBER,
+                        UnknownFieldSet.Field.newBuilder().addVarint(42).build())
+                .build();
+        final NodeProto.Node tree = newTree(3, null);
+        final NodeProto.Node node = newTree(3, unknownFields);
+
+        final Varint32ProtobufDecoder decoder = new Varint32ProtobufDecoder(tree, null);
+        decoder.setDiscardUnknownFields(true);
+        assertEquals(tree, decode(decoder, node));
+    }
+
+    @Test
+    public void recursionLimitTest() throws IOException {
+        final FieldFilter filter = FieldFilter.newInstance(
+                NodeProto.Node.getDefaultInstance(), true, false, null);
+
+        // the top-level message and 63 nested levels are within the limit
+        final byte[] nested = newTree(63, null).toByteArray();
+        assertEquals(nested.length,
+                filter.filter(CodedInputStream.newInstance(nested), new byte[nested.length]));
+
+        final byte[] tooNested = newTree(64, null).toByteArray();
+        try {
+            filter.filter(CodedInputStream.newInstance(tooNested), new byte[tooNested.length]);
+            fail("Expected an InvalidProtocolBufferException.");
+        } catch (final InvalidProtocolBufferException e) {
+            assertTrue(e.getMessage().contains("nesting"));
+        }
+    }
+
+    private static NodeProto.Node newTree(
+            final int depth, final UnknownFieldSet unknownFields) {
+        final NodeProto.Node.Builder builder = NodeProto.Node.newBuilder()
+                .setName("node-" + depth);
+        if (unknownFields != null) {
+            builder.setUnknownFields(unknownFields);
+        }
+        if (depth > 0) {
+            builder.addChild(newTree(depth - 1, unknownFields));
+        }
+        return builder.build();
+    }
+
+    private MessageLite decode(
+            final AbstractProtobufDecoder decoder, final MessageLite message) {
+        final Buffer frame = new Varint32ProtobufEncoder().transform(storage, message).getMessage();
+        final TransformationResult<Buffer, MessageLite> result =
+                decoder.transform(storage, frame);
+        assertEquals(TransformationResult.Status.COMPLETE, result.getStatus());
+        return result.getMessage();
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.TransformationResult;
+import org.glassfish.grizzly.attributes.AttributeStorage;
+import org.glassfish.grizzly.memory.Buffers;
+import org.glassfish.grizzly.memory.MemoryManager;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link me.cmoz.grizzly.protobuf.FrameTracer}.
+ */
+public class FrameTracerTest {
+
+    /** The number of bytes of the frame sent before the peer pauses. */
+    private static final int PARTIAL_LENGTH = 20;
+
+    /** The message to frame. */
+    private static final Proto.User USER = Proto.User.newBuilder()
+            .setName("Albert Einstein")
+            .setEmail("albert.einstein@gmail.com")
+            .addPhone(Proto.User.PhoneNumber.newBuilder().setNumber("555-4321"))
+            .build();
+
+    /** The framed message. */
+    private byte[] frame;
+
+    @Before
+    public void setUp() {
+        final Varint32ProtobufEncoder encoder = new Varint32ProtobufEncoder();
+        encoder.setMemoryManager(MemoryManager.DEFAULT_MEMORY_MANAGER);
+        final Buffer buffer = encoder.transform(new DetachedAttributeStorage(), USER).getMessage();
+        frame = new byte[buffer.remaining()];
+        buffer.get(frame);
+    }
+
+    @Test
+    public void sampledFramesTest() {
+        final FrameTracer tracer = new FrameTracer(2, 1, TimeUnit.HOURS, 2);
+        final Varint32ProtobufDecoder decoder = newDecoder(tracer);
+        final AttributeStorage storage = new DetachedAttributeStorage();
+
+        for (int i = 0; i < 6; i++) {
+            assertComplete(decoder.transform(storage, wrap(0, frame.length)));
+        }
+
+        // frames 0, 2 and 4 are sampled, the ring keeps the last two
+        final List<FrameTracer.FrameRecord> sampled = tracer.getSampledFrames();
+        assertEquals(2, sampled.size());
+        for (final FrameTracer.FrameRecord record : sampled) {
+            assertEquals(Proto.User.class.getName(), record.getMessageType());
+            assertEquals(USER.getSerializedSize(), record.getSize());
+            assertTrue(record.getFrameNanos() >= record.getParseNanos());
+        }
+        assertTrue(tracer.getSlowFrames().isEmpty());
+    }
+
+    @Test
+    public void sampledPerThreadTest() throws InterruptedException {
+        final FrameTracer tracer = new FrameTracer(2, 1, TimeUnit.HOURS, 8);
+        final Varint32ProtobufDecoder decoder = newDecoder(tracer);
+
+        // each thread samples its frames 0 and 2 of 3
+        for (int i = 0; i < 2; i++) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final AttributeStorage storage = new DetachedAttributeStorage();
+                    for (int j = 0; j < 3; j++) {
+                        assertComplete(decoder.transform(storage, wrap(0, frame.length)));
+                    }
+                }
+            });
+            thread.start();
+            thread.join();
+        }
+
+        assertEquals(4, tracer.getSampledFrames().size());
+    }
+
+    @Test
+    public void slowFrameTest() throws InterruptedException {
+        final FrameTracer tracer = new FrameTracer(1000, 5, TimeUnit.MILLISECONDS, 4);
+        final Varint32ProtobufDecoder decoder = newDecoder(tracer);
+        final AttributeStorage storage = new DetachedAttributeStorage();
+
+        // the first frame is sampled, the second is fast and not recorded
+        assertComplete(decoder.transform(storage, wrap(0, frame.length)));
+        assertComplete(decoder.transform(storage, wrap(0, frame.length)));
+
+        final Buffer input = wrap(0, PARTIAL_LENGTH);
+        assertEquals(TransformationResult.Status.INCOMPLETE,
+                decoder.transform(storage, input).getStatus());
+        Thread.sleep(10);
+        assertComplete(decoder.transform(storage,
+                wrap(input.position(), frame.length - input.position())));
+
+        assertEquals(1, tracer.getSampledFrames().size());
+        final List<FrameTracer.FrameRecord> slow = tracer.getSlowFrames();
+        assertEquals(1, slow.size());
+        assertTrue(slow.get(0).getFrameNanos() >= TimeUnit.MILLISECONDS.toNanos(10));
+        assertEquals(String.valueOf(storage), slow.get(0).getConnection());
+        assertTrue(tracer.dump().contains(slow.get(0).toString()));
+    }
+
+    private static Varint32ProtobufDecoder newDecoder(final FrameTracer tracer) {
+        final Varint32ProtobufDecoder decoder = new Varint32ProtobufDecoder(USER, null);
+        decoder.setFrameTracer(tracer);
+        return decoder;
+    }
+
+    private Buffer wrap(final int offset, final int length) {
+        return Buffers.wrap(MemoryManager.DEFAULT_MEMORY_MANAGER, frame, offset, length);
+    }
+
+    private static void assertComplete(final TransformationResult<Buffer, ?> result) {
+        assertEquals(TransformationResult.Status.COMPLETE, result.getStatus());
+    }
+
+}
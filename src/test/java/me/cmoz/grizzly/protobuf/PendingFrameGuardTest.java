@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import com.google.protobuf.MessageLite;
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.TransformationResult;
+import org.glassfish.grizzly.attributes.IndexedAttributeHolder;
+import org.glassfish.grizzly.memory.Buffers;
+import org.glassfish.grizzly.memory.MemoryManager;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+/**
+ * {@link me.cmoz.grizzly.protobuf.PendingFrameGuard}.
+ */
+public class PendingFrameGuardTest {
+
+    /** The number of bytes of each frame sent before the peer stalls. */
+    private static final int PARTIAL_LENGTH = 60;
+
+    /** The message to frame. */
+    private static final Proto.User USER = Proto.User.newBuilder()
+            .setName("Albert Einstein")
+            .setEmail("albert.einstein@gmail.com")
+            .addPhone(Proto.User.PhoneNumber.newBuilder().setNumber("555-4321"))
+            .addPhone(Proto.User.PhoneNumber.newBuilder().setNumber("555-1234"))
+            .build();
+
+    /** The framed message. */
+    private byte[] frame;
+
+    @Before
+    public void setUp() {
+        final Varint32ProtobufEncoder encoder = new Varint32ProtobufEncoder();
+        encoder.setMemoryManager(MemoryManager.DEFAULT_MEMORY_MANAGER);
+        final Buffer buffer = encoder.transform(newConnection(), USER).getMessage();
+        frame = new byte[buffer.remaining()];
+        buffer.get(frame);
+    }
+
+    @Test
+    public void frameTimeoutTest() throws InterruptedException {
+        final PendingFrameGuard guard = new PendingFrameGuard(1, TimeUnit.MILLISECONDS, 0);
+        final Varint32ProtobufDecoder decoder = newDecoder(guard);
+        final Connection connection = newConnection();
+
+        final Buffer input = partialFrame();
+        assertIncomplete(decoder.transform(connection, input));
+        assertEquals(input.remaining(), guard.getPendingBytes());
+
+        Thread.sleep(10);
+        guard.run();
+
+        verify(connection).closeSilently();
+        assertEquals(0, guard.getPendingBytes());
+    }
+
+    @Test
+    public void memoryCapTest() {
+        final PendingFrameGuard guard = new PendingFrameGuard(1, TimeUnit.HOURS, 100);
+        final Varint32ProtobufDecoder decoder = newDecoder(guard);
+        final Connection oldest = newConnection();
+        final Connection newest = newConnection();
+
+        assertIncomplete(decoder.transform(oldest, partialFrame()));
+        final Buffer input = partialFrame();
+        assertIncomplete(decoder.transform(newest, input));
+
+        verify(oldest).closeSilently();
+        verify(newest, never()).closeSilently();
+        assertEquals(input.remaining(), guard.getPendingBytes());
+    }
+
+    @Test
+    public void completedFrameTest() {
+        final PendingFrameGuard guard = new PendingFrameGuard(1, TimeUnit.MILLISECONDS, 0);
+        final Varint32ProtobufDecoder decoder = newDecoder(guard);
+        final Connection connection = newConnection();
+
+        final Buffer input = partialFrame();
+        assertIncomplete(decoder.transform(connection, input));
+        final Buffer remainder = Buffers.wrap(MemoryManager.DEFAULT_MEMORY_MANAGER,
+                frame, input.position(), frame.length - input.position());
+
+        final TransformationResult<Buffer, MessageLite> result =
+                decoder.transform(connection, remainder);
+        assertEquals(TransformationResult.Status.COMPLETE, result.getStatus());
+        assertEquals(USER, result.getMessage());
+        assertEquals(0, guard.getPendingBytes());
+        assertEquals(0, guard.getPendingFrameCount());
+
+        guard.run();
+        verify(connection, never()).closeSilently();
+    }
+
+    @Test
+    public void unscheduledGuardTest() {
+        // a guard used only for its memory cap is never run
+        final PendingFrameGuard guard = new PendingFrameGuard(1, TimeUnit.HOURS, 1024);
+        final Varint32ProtobufDecoder decoder = newDecoder(guard);
+        final Connection connection = newConnection();
+
+        for (int i = 0; i < 100; i++) {
+            final Buffer input = partialFrame();
+            assertIncomplete(decoder.transform(connection, input));
+            assertEquals(1, guard.getPendingFrameCount());
+
+            final Buffer remainder = Buffers.wrap(MemoryManager.DEFAULT_MEMORY_MANAGER,
+                    frame, input.position(), frame.length - input.position());
+            assertEquals(TransformationResult.Status.COMPLETE,
+                    decoder.transform(connection, remainder).getStatus());
+            assertEquals(0, guard.getPendingFrameCount());
+        }
+        assertEquals(0, guard.getPendingBytes());
+    }
+
+    private Varint32ProtobufDecoder newDecoder(final PendingFrameGuard guard) {
+        final Varint32ProtobufDecoder decoder = new Varint32ProtobufDecoder(USER, null);
+        decoder.setPendingFrameGuard(guard);
+        return decoder;
+    }
+
+    private Buffer partialFrame() {
+        return Buffers.wrap(MemoryManager.DEFAULT_MEMORY_MANAGER, frame, 0, PARTIAL_LENGTH);
+    }
+
+    private static Connection newConnection() {
+        final Connection connection = mock(Connection.class);
+        when(connection.getAttributes()).thenReturn(
+                new IndexedAttributeHolder(Grizzly.DEFAULT_ATTRIBUTE_BUILDER));
+        return connection;
+    }
+
+    private static void assertIncomplete(final TransformationResult<Buffer, MessageLite> result) {
+        assertEquals(TransformationResult.Status.INCOMPLETE, result.getStatus());
+    }
+
+}
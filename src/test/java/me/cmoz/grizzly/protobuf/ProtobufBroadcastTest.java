@@ -0,0 +1,238 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import org.glassfish.grizzly.CompletionHandler;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.WriteResult;
+import org.glassfish.grizzly.filterchain.*;
+import org.glassfish.grizzly.memory.HeapBuffer;
+import org.glassfish.grizzly.memory.HeapMemoryManager;
+import org.glassfish.grizzly.nio.NIOTransport;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
+import org.glassfish.grizzly.utils.DataStructures;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.mockito.Mockito.*;
+
+/**
+ * {@link me.cmoz.grizzly.protobuf.AbstractProtobufFilter#broadcast}.
+ */
+public class ProtobufBroadcastTest {
+
+    /** The port for the local test. */
+    private static final int PORT = 20391;
+    /** The number of clients to broadcast to. */
+    private static final int CLIENTS = 4;
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void broadcastMessageTest()
+            throws IOException, InterruptedException, ExecutionException {
+        final Proto.User user = Proto.User.newBuilder()
+                .setName("Albert Einstein")
+                .setEmail("albert.einstein@gmail.com")
+                .build();
+
+        final BlockingQueue<Connection> accepted =
+                DataStructures.getLTQInstance(Connection.class);
+        final Varint32ProtobufFilter serverProtobufFilter =
+                new Varint32ProtobufFilter(user.getDefaultInstanceForType());
+
+        final FilterChainBuilder serverFilterBuilder = FilterChainBuilder.stateless()
+                .add(new TransportFilter())
+                .add(serverProtobufFilter)
+                .add(new AcceptFilter(accepted));
+
+        final NIOTransport transport = TCPNIOTransportBuilder.newInstance()
+                .setProcessor(serverFilterBuilder.build())
+                .build();
+
+        final BlockingQueue<Proto.User> resultQueue =
+                DataStructures.getLTQInstance(Proto.User.class);
+        final FilterChain clientFilter = FilterChainBuilder.stateless()
+                .add(new TransportFilter())
+                .add(new Varint32ProtobufFilter(user.getDefaultInstanceForType()))
+                .add(new ProtoClientFilter(resultQueue))
+                .build();
+
+        final List<Connection> clients = new ArrayList<Connection>();
+        try {
+            transport.bind(PORT);
+            transport.start();
+
+            final List<Connection> serverConnections = new ArrayList<Connection>();
+            for (int i = 0; i < CLIENTS; i++) {
+                final Connection connection = transport.connect("localhost", PORT).get();
+                connection.setProcessor(clientFilter);
+                clients.add(connection);
+
+                final Connection serverConnection = accepted.poll(10, TimeUnit.SECONDS);
+                assertNotNull(serverConnection);
+                serverConnections.add(serverConnection);
+            }
+
+            final CountingMemoryManager memoryManager = new CountingMemoryManager();
+            assertEquals(CLIENTS, serverProtobufFilter.broadcast(
+                    user, serverConnections, memoryManager));
+
+            for (int i = 0; i < CLIENTS; i++) {
+                assertEquals(user, resultQueue.poll(10, TimeUnit.SECONDS));
+            }
+
+            // the shared frame is disposed once, after the last write
+            final long deadline = System.currentTimeMillis() + 10000;
+            while ((memoryManager.getDisposed() == 0) && (System.currentTimeMillis() < deadline)) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, memoryManager.getDisposed());
+        } finally {
+            for (final Connection connection : clients) {
+                connection.close();
+            }
+
+            transport.stop();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sharedFrameReleaseTest() throws IOException {
+        final List<CompletionHandler<WriteResult>> handlers =
+                new ArrayList<CompletionHandler<WriteResult>>();
+        final Answer<Object> captureHandler = new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation) {
+                handlers.add((CompletionHandler<WriteResult>) invocation.getArguments()[1]);
+                return null;
+            }
+        };
+        final Answer<Object> failWrite = new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation) {
+                ((CompletionHandler<WriteResult>) invocation.getArguments()[1])
+                        .failed(new IOException("Connection reset."));
+                return null;
+            }
+        };
+
+        final List<Connection> connections = new ArrayList<Connection>();
+        for (int i = 0; i < 3; i++) {
+            final Connection connection = mock(Connection.class);
+            when(connection.isOpen()).thenReturn(true);
+            doAnswer((i == 1) ? failWrite : captureHandler)
+                    .when(connection).write(any(), any(CompletionHandler.class));
+            connections.add(connection);
+        }
+
+        final CountingMemoryManager memoryManager = new CountingMemoryManager();
+        final Varint32ProtobufFilter protobufFilter =
+                new Varint32ProtobufFilter(Proto.User.getDefaultInstance());
+        assertEquals(3, protobufFilter.broadcast(
+                Proto.User.newBuilder().setName("Albert Einstein").build(),
+                connections, memoryManager));
+
+        // the failed write released its reference, the others are in flight
+        assertEquals(2, handlers.size());
+        assertEquals(0, memoryManager.getDisposed());
+        handlers.get(0).completed(null);
+        assertEquals(0, memoryManager.getDisposed());
+        handlers.get(1).completed(null);
+        assertEquals(1, memoryManager.getDisposed());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void deltaEncodingTest() throws IOException {
+        final Varint32ProtobufFilter protobufFilter =
+                new Varint32ProtobufFilter(Proto.User.getDefaultInstance());
+        protobufFilter.setDeltaEncoding(4);
+
+        protobufFilter.broadcast(Proto.User.newBuilder().setName("Albert Einstein").build(),
+                new ArrayList<Connection>());
+    }
+
+    /**
+     * Counts the disposals of the buffers it allocates.
+     */
+    private static class CountingMemoryManager extends HeapMemoryManager {
+
+        /** The number of allocated buffers that were disposed. */
+        private final AtomicInteger disposed = new AtomicInteger();
+
+        @Override
+        public HeapBuffer allocate(final int size) {
+            return new HeapBuffer(new byte[size], 0, size) {
+                @Override
+                public void dispose() {
+                    disposed.incrementAndGet();
+                    super.dispose();
+                }
+            };
+        }
+
+        public int getDisposed() {
+            return disposed.get();
+        }
+
+    }
+
+    private static class AcceptFilter extends BaseFilter {
+
+        /** A storage queue to send the accepted connections to. */
+        private final BlockingQueue<Connection> accepted;
+
+        public AcceptFilter(final BlockingQueue<Connection> accepted) {
+            this.accepted = accepted;
+        }
+
+        public NextAction handleAccept(final FilterChainContext context)
+                throws IOException {
+            accepted.add(context.getConnection());
+            return context.getStopAction();
+        }
+
+    }
+
+    private static class ProtoClientFilter extends BaseFilter {
+
+        /** A storage queue to send the read messages to. */
+        private final BlockingQueue<Proto.User> resultQueue;
+
+        public ProtoClientFilter(final BlockingQueue<Proto.User> resultQueue) {
+            this.resultQueue = resultQueue;
+        }
+
+        public NextAction handleRead(final FilterChainContext context)
+                throws IOException {
+            resultQueue.add((Proto.User) context.getMessage());
+            return context.getStopAction();
+        }
+
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.TransformationResult;
+import org.glassfish.grizzly.attributes.AttributeHolder;
+import org.glassfish.grizzly.attributes.AttributeStorage;
+import org.glassfish.grizzly.attributes.IndexedAttributeHolder;
+import org.glassfish.grizzly.memory.Buffers;
+import org.glassfish.grizzly.memory.MemoryManager;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link me.cmoz.grizzly.protobuf.ProtobufFlyweight}.
+ */
+public class ProtobufFlyweightTest {
+
+    /** The message to read through the flyweight view. */
+    private static final Proto.User USER = Proto.User.newBuilder()
+            .setName("Albert Einstein")
+            .setEmail("albert.einstein@gmail.com")
+            .addPhone(
+                    Proto.User.PhoneNumber.newBuilder()
+                            .setNumber("555-4321")
+                            .setType(Proto.User.PhoneType.WORK))
+            .addPhone(
+                    Proto.User.PhoneNumber.newBuilder()
+                            .setNumber("555-1234"))
+            .build();
+
+    @Test
+    public void readFieldsTest() throws IOException {
+        final Buffer buffer = Buffers.wrap(
+                MemoryManager.DEFAULT_MEMORY_MANAGER, USER.toByteArray());
+        final ProtobufFlyweight user = new ProtobufFlyweight(USER)
+                .wrap(buffer, 0, buffer.remaining());
+
+        assertEquals(USER.getName(), user.getString(Proto.User.NAME_FIELD_NUMBER));
+        assertEquals(USER.getEmail(), user.getString(Proto.User.EMAIL_FIELD_NUMBER));
+        assertEquals(2, user.getCount(Proto.User.PHONE_FIELD_NUMBER));
+
+        final ProtobufFlyweight phone =
+                new ProtobufFlyweight(Proto.User.PhoneNumber.getDefaultInstance());
+        assertTrue(user.getMessage(Proto.User.PHONE_FIELD_NUMBER, 0, phone));
+        assertEquals("555-4321", phone.getString(Proto.User.PhoneNumber.NUMBER_FIELD_NUMBER));
+        assertEquals(Proto.User.PhoneType.WORK_VALUE,
+                phone.getInt32(Proto.User.PhoneNumber.TYPE_FIELD_NUMBER));
+
+        assertTrue(user.getMessage(Proto.User.PHONE_FIELD_NUMBER, 1, phone));
+        assertFalse(phone.has(Proto.User.PhoneNumber.TYPE_FIELD_NUMBER));
+
+        assertEquals(USER, user.toMessage());
+    }
+
+    @Test
+    public void skipGroupTest() throws IOException {
+        // an unknown group holding a string, followed by the name
+        final byte[] message = {
+                0x2B, 0x0A, 0x03, 'a', 'b', 'c', 0x2C,
+                0x0A, 0x02, 'A', 'l' };
+        final ProtobufFlyweight user = new ProtobufFlyweight(USER).wrap(
+                Buffers.wrap(MemoryManager.DEFAULT_MEMORY_MANAGER, message),
+                0, message.length);
+
+        assertEquals("Al", user.getString(Proto.User.NAME_FIELD_NUMBER));
+    }
+
+    @Test(expected = InvalidProtocolBufferException.class)
+    public void malformedGroupTest() throws IOException {
+        // a group holding a string with a length of -1
+        final byte[] message = {
+                0x2B, 0x0A, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F,
+                0x2C, 0x0A, 0x02, 'A', 'l', 0, 0, 0, 0 };
+        new ProtobufFlyweight(USER).wrap(
+                Buffers.wrap(MemoryManager.DEFAULT_MEMORY_MANAGER, message),
+                0, message.length);
+    }
+
+    @Test
+    public void decodeFramesTest() throws IOException {
+        final AttributeHolder holder =
+                new IndexedAttributeHolder(Grizzly.DEFAULT_ATTRIBUTE_BUILDER);
+        final AttributeStorage storage = new AttributeStorage() {
+            @Override
+            public AttributeHolder getAttributes() {
+                return holder;
+            }
+        };
+
+        final Varint32ProtobufEncoder encoder = new Varint32ProtobufEncoder();
+        final Proto.User other = Proto.User.newBuilder().setName("Niels Bohr").build();
+        final Buffer first = encoder.transform(storage, USER).getMessage();
+        final Buffer second = encoder.transform(storage, other).getMessage();
+
+        final Buffer input = MemoryManager.DEFAULT_MEMORY_MANAGER
+                .allocate(first.remaining() + second.remaining());
+        input.put(first).put(second).flip();
+
+        final Varint32ProtobufDecoder decoder = new Varint32ProtobufDecoder(USER, null);
+        decoder.setFlyweight(true);
+
+        TransformationResult<Buffer, MessageLite> result = decoder.transform(storage, input);
+        assertEquals(TransformationResult.Status.COMPLETE, result.getStatus());
+        assertEquals(USER.getName(), ((ProtobufFlyweight) result.getMessage())
+                .getString(Proto.User.NAME_FIELD_NUMBER));
+
+        result = decoder.transform(storage, input);
+        assertEquals(TransformationResult.Status.COMPLETE, result.getStatus());
+        assertEquals(other, ((ProtobufFlyweight) result.getMessage()).toMessage());
+        assertFalse(input.hasRemaining());
+    }
+
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import com.google.protobuf.MessageLite;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.FilterChainBuilder;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.glassfish.grizzly.filterchain.TransportFilter;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
+import org.glassfish.grizzly.utils.DataStructures;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link me.cmoz.grizzly.protobuf.ProtobufPublisherFilter}.
+ */
+public class ProtobufPublisherFilterTest {
+
+    /** The port for the local test. */
+    private static final int PORT = 20393;
+    /** The port for the local flyweight test. */
+    private static final int FLYWEIGHT_PORT = 20396;
+    /** The port for the local close test. */
+    private static final int CLOSE_PORT = 20397;
+    /** The number of messages sent by the client. */
+    private static final int MESSAGES = 10;
+    /** The number of messages buffered without demand. */
+    private static final int PREFETCH = 2;
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void demandTest()
+            throws IOException, InterruptedException, ExecutionException {
+        final BlockingQueue<MessageFlow.Subscription> subscriptions =
+                DataStructures.getLTQInstance(MessageFlow.Subscription.class);
+        final BlockingQueue<MessageLite> resultQueue =
+                DataStructures.getLTQInstance(MessageLite.class);
+
+        final ProtobufPublisherFilter publisherFilter = new ProtobufPublisherFilter(PREFETCH,
+                new ProtobufPublisherFilter.PublisherHandler() {
+                    @Override
+                    public void onPublisher(
+                            final Connection connection,
+                            final MessageFlow.Publisher<MessageLite> publisher) {
+                        publisher.subscribe(new QueueSubscriber(subscriptions, resultQueue));
+                    }
+                });
+
+        final CountingFilter decodedCounter = new CountingFilter();
+        final TCPNIOTransport transport = TCPNIOTransportBuilder.newInstance()
+                .setProcessor(FilterChainBuilder.stateless()
+                        .add(new TransportFilter())
+                        .add(new Varint32ProtobufFilter(Proto.User.getDefaultInstance()))
+                        .add(decodedCounter)
+                        .add(publisherFilter)
+                        .build())
+                .build();
+
+        final TCPNIOTransport clientTransport = TCPNIOTransportBuilder.newInstance()
+                .setProcessor(FilterChainBuilder.stateless()
+                        .add(new TransportFilter())
+                        .add(new Varint32ProtobufFilter(Proto.User.getDefaultInstance()))
+                        .build())
+                .build();
+
+        Connection connection = null;
+        try {
+            transport.bind(PORT);
+            transport.start();
+            clientTransport.start();
+
+            connection = clientTransport.connect("localhost", PORT).get();
+            for (int i = 0; i < MESSAGES; i++) {
+                connection.write(Proto.User.newBuilder().setName("Albert Einstein " + i).build());
+            }
+
+            final MessageFlow.Subscription subscription =
+                    subscriptions.poll(10, TimeUnit.SECONDS);
+            assertNotNull(subscription);
+
+            // without demand the reads stop once the prefetch is buffered
+            decodedCounter.awaitCount(PREFETCH);
+            Thread.sleep(200);
+            assertEquals(PREFETCH, decodedCounter.getCount());
+
+            subscription.request(1);
+            assertEquals("Albert Einstein 0",
+                    ((Proto.User) resultQueue.poll(10, TimeUnit.SECONDS)).getName());
+            assertNull(resultQueue.poll(200, TimeUnit.MILLISECONDS));
+            decodedCounter.awaitCount(PREFETCH + 1);
+            Thread.sleep(200);
+            assertEquals(PREFETCH + 1, decodedCounter.getCount());
+
+            subscription.request(MESSAGES - 1);
+            for (int i = 1; i < MESSAGES; i++) {
+                assertEquals("Albert Einstein " + i,
+                        ((Proto.User) resultQueue.poll(10, TimeUnit.SECONDS)).getName());
+            }
+            assertEquals(MESSAGES, decodedCounter.getCount());
+        } finally {
+            if (connection != null)
+                connection.close();
+
+            clientTransport.stop();
+            transport.stop();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void flyweightTest()
+            throws IOException, InterruptedException, ExecutionException {
+        final BlockingQueue<MessageFlow.Subscription> subscriptions =
+                DataStructures.getLTQInstance(MessageFlow.Subscription.class);
+        final BlockingQueue<MessageLite> resultQueue =
+                DataStructures.getLTQInstance(MessageLite.class);
+
+        final Varint32ProtobufFilter protobufFilter =
+                new Varint32ProtobufFilter(Proto.User.getDefaultInstance());
+        protobufFilter.setFlyweightDecoding(true);
+        final TCPNIOTransport transport = TCPNIOTransportBuilder.newInstance()
+                .setProcessor(FilterChainBuilder.stateless()
+                        .add(new TransportFilter())
+                        .add(protobufFilter)
+                        .add(new ProtobufPublisherFilter(MESSAGES,
+                                new ProtobufPublisherFilter.PublisherHandler() {
+                                    @Override
+                                    public void onPublisher(
+                                            final Connection connection,
+                                            final MessageFlow.Publisher<MessageLite> publisher) {
+                                        publisher.subscribe(
+                                                new QueueSubscriber(subscriptions, resultQueue));
+                                    }
+                                }))
+                        .build())
+                .build();
+
+        final TCPNIOTransport clientTransport = TCPNIOTransportBuilder.newInstance()
+                .setProcessor(FilterChainBuilder.stateless()
+                        .add(new TransportFilter())
+                        .add(new Varint32ProtobufFilter(Proto.User.getDefaultInstance()))
+                        .build())
+                .build();
+
+        Connection connection = null;
+        try {
+            transport.bind(FLYWEIGHT_PORT);
+            transport.start();
+            clientTransport.start();
+
+            connection = clientTransport.connect("localhost", FLYWEIGHT_PORT).get();
+            for (int i = 0; i < MESSAGES; i++) {
+                connection.write(Proto.User.newBuilder().setName("Albert Einstein " + i).build());
+            }
+
+            final MessageFlow.Subscription subscription =
+                    subscriptions.poll(10, TimeUnit.SECONDS);
+            assertNotNull(subscription);
+
+            // the buffered messages are copies, not views over the input
+            Thread.sleep(200);
+            subscription.request(MESSAGES);
+            for (int i = 0; i < MESSAGES; i++) {
+                assertEquals("Albert Einstein " + i,
+                        ((Proto.User) resultQueue.poll(10, TimeUnit.SECONDS)).getName());
+            }
+        } finally {
+            if (connection != null)
+                connection.close();
+
+            clientTransport.stop();
+            transport.stop();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void closeWhileSuspendedTest()
+            throws IOException, InterruptedException, ExecutionException {
+        final BlockingQueue<MessageFlow.Subscription> subscriptions =
+                DataStructures.getLTQInstance(MessageFlow.Subscription.class);
+        final BlockingQueue<MessageLite> resultQueue =
+                DataStructures.getLTQInstance(MessageLite.class);
+        final BlockingQueue<Connection> serverConnections =
+                DataStructures.getLTQInstance(Connection.class);
+        final CountDownLatch completed = new CountDownLatch(1);
+        final QueueSubscriber subscriber = new QueueSubscriber(subscriptions, resultQueue) {
+            @Override
+            public void onComplete() {
+                completed.countDown();
+            }
+        };
+
+        final ProtobufPublisherFilter publisherFilter = new ProtobufPublisherFilter(PREFETCH,
+                new ProtobufPublisherFilter.PublisherHandler() {
+                    @Override
+                    public void onPublisher(
+                            final Connection connection,
+                            final MessageFlow.Publisher<MessageLite> publisher) {
+                        serverConnections.add(connection);
+                        publisher.subscribe(subscriber);
+                    }
+                });
+
+        // the read that fills the prefetch is the one that is suspended
+        final CountDownLatch readCompleted = new CountDownLatch(1);
+        final CountingFilter decodedCounter = new CountingFilter() {
+            @Override
+            public NextAction handleRead(final FilterChainContext context)
+                    throws IOException {
+                if (getCount() == PREFETCH - 1) {
+                    context.addCompletionListener(
+                            new FilterChainContext.CompletionListener() {
+                                @Override
+                                public void onComplete(final FilterChainContext context) {
+                                    readCompleted.countDown();
+                                }
+                            });
+                }
+                return super.handleRead(context);
+            }
+        };
+        final TCPNIOTransport transport = TCPNIOTransportBuilder.newInstance()
+                .setProcessor(FilterChainBuilder.stateless()
+                        .add(new TransportFilter())
+                        .add(new Varint32ProtobufFilter(Proto.User.getDefaultInstance()))
+                        .add(decodedCounter)
+                        .add(publisherFilter)
+                        .build())
+                .build();
+
+        final TCPNIOTransport clientTransport = TCPNIOTransportBuilder.newInstance()
+                .setProcessor(FilterChainBuilder.stateless()
+                        .add(new TransportFilter())
+                        .add(new Varint32ProtobufFilter(Proto.User.getDefaultInstance()))
+                        .build())
+                .build();
+
+        Connection connection = null;
+        try {
+            transport.bind(CLOSE_PORT);
+            transport.start();
+            clientTransport.start();
+
+            connection = clientTransport.connect("localhost", CLOSE_PORT).get();
+            for (int i = 0; i < MESSAGES; i++) {
+                connection.write(Proto.User.newBuilder().setName("Albert Einstein " + i).build());
+            }
+
+            final MessageFlow.Subscription subscription =
+                    subscriptions.poll(10, TimeUnit.SECONDS);
+            assertNotNull(subscription);
+            decodedCounter.awaitCount(PREFETCH);
+            Thread.sleep(200);
+            assertEquals(1, readCompleted.getCount());
+
+            final Connection serverConnection = serverConnections.poll(10, TimeUnit.SECONDS);
+            assertNotNull(serverConnection);
+            serverConnection.close();
+            assertTrue(readCompleted.await(10, TimeUnit.SECONDS));
+
+            // the buffered messages are still sent before the end of the stream
+            subscription.request(MESSAGES);
+            for (int i = 0; i < PREFETCH; i++) {
+                assertEquals("Albert Einstein " + i,
+                        ((Proto.User) resultQueue.poll(10, TimeUnit.SECONDS)).getName());
+            }
+            assertTrue(completed.await(10, TimeUnit.SECONDS));
+            assertEquals(PREFETCH, decodedCounter.getCount());
+        } finally {
+            if (connection != null)
+                connection.close();
+
+            clientTransport.stop();
+            transport.stop();
+        }
+    }
+
+    private static class CountingFilter extends BaseFilter {
+
+        /** The number of messages passed on to the publisher. */
+        private final AtomicInteger count = new AtomicInteger();
+
+        public NextAction handleRead(final FilterChainContext context)
+                throws IOException {
+            count.incrementAndGet();
+            return context.getInvokeAction();
+        }
+
+        public int getCount() {
+            return count.get();
+        }
+
+        public void awaitCount(final int expected) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + 10000;
+            while ((count.get() < expected) && (System.currentTimeMillis() < deadline)) {
+                Thread.sleep(10);
+            }
+        }
+
+    }
+
+    private static class QueueSubscriber implements MessageFlow.Subscriber<MessageLite> {
+
+        /** A storage queue to send the subscription to. */
+        private final BlockingQueue<MessageFlow.Subscription> subscriptions;
+        /** A storage queue to send the received messages to. */
+        private final BlockingQueue<MessageLite> resultQueue;
+
+        public QueueSubscriber(
+                final BlockingQueue<MessageFlow.Subscription> subscriptions,
+                final BlockingQueue<MessageLite> resultQueue) {
+            this.subscriptions = subscriptions;
+            this.resultQueue = resultQueue;
+        }
+
+        public void onSubscribe(final MessageFlow.Subscription subscription) {
+            subscriptions.add(subscription);
+        }
+
+        public void onNext(final MessageLite item) {
+            resultQueue.add(item);
+        }
+
+        public void onError(final Throwable throwable) {
+        }
+
+        public void onComplete() {
+        }
+
+    }
+
+}
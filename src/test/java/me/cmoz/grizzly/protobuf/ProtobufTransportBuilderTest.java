@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.filterchain.*;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
+import org.glassfish.grizzly.strategies.SameThreadIOStrategy;
+import org.glassfish.grizzly.utils.DataStructures;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * {@link me.cmoz.grizzly.protobuf.ProtobufTransportBuilder}.
+ */
+public class ProtobufTransportBuilderTest {
+
+    /** The port for the local test. */
+    private static final int PORT = 20392;
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void nonBlockingTransportTest()
+            throws IOException, InterruptedException, ExecutionException {
+        final Proto.User user = Proto.User.newBuilder()
+                .setName("Albert Einstein")
+                .setEmail("albert.einstein@gmail.com")
+                .build();
+
+        final TCPNIOTransport transport = ProtobufTransportBuilder
+                .newInstance(new Varint32ProtobufFilter(user.getDefaultInstanceForType()))
+                .addHandler(new EchoFilter())
+                .setHandlerProfile(ProtobufTransportBuilder.HandlerProfile.NON_BLOCKING_SMALL_MESSAGES)
+                .setKernelThreads(2)
+                .setTcpNoDelay(true)
+                .build();
+
+        assertSame(SameThreadIOStrategy.getInstance(), transport.getIOStrategy());
+        assertNull(transport.getWorkerThreadPool());
+        assertEquals(2, transport.getSelectorRunnersCount());
+
+        final TCPNIOTransport clientTransport = TCPNIOTransportBuilder.newInstance().build();
+        Connection connection = null;
+        try {
+            transport.bind(PORT);
+            transport.start();
+            clientTransport.start();
+
+            final BlockingQueue<Proto.User> resultQueue =
+                    DataStructures.getLTQInstance(Proto.User.class);
+            clientTransport.setProcessor(FilterChainBuilder.stateless()
+                    .add(new TransportFilter())
+                    .add(new Varint32ProtobufFilter(user.getDefaultInstanceForType()))
+                    .add(new ProtoClientFilter(resultQueue))
+                    .build());
+
+            connection = clientTransport.connect("localhost", PORT).get();
+            connection.write(user).get();
+
+            assertEquals(user, resultQueue.poll(10, TimeUnit.SECONDS));
+        } finally {
+            if (connection != null)
+                connection.close();
+
+            clientTransport.stop();
+            transport.stop();
+        }
+    }
+
+    private static class EchoFilter extends BaseFilter {
+
+        public NextAction handleRead(final FilterChainContext context)
+                throws IOException {
+            context.write(context.getMessage());
+            return context.getStopAction();
+        }
+
+    }
+
+    private static class ProtoClientFilter extends BaseFilter {
+
+        /** A storage queue to send the read messages to. */
+        private final BlockingQueue<Proto.User> resultQueue;
+
+        public ProtoClientFilter(final BlockingQueue<Proto.User> resultQueue) {
+            this.resultQueue = resultQueue;
+        }
+
+        public NextAction handleRead(final FilterChainContext context)
+                throws IOException {
+            resultQueue.add((Proto.User) context.getMessage());
+            return context.getStopAction();
+        }
+
+    }
+
+}
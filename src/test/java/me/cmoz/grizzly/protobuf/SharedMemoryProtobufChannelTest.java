@@ -0,0 +1,238 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.cmoz.grizzly.protobuf;
+
+import com.google.protobuf.MessageLite;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link me.cmoz.grizzly.protobuf.SharedMemoryProtobufChannel}.
+ */
+public class SharedMemoryProtobufChannelTest {
+
+    /** The size of the ring, small so the ring wraps around many times. */
+    private static final int CAPACITY = 512;
+    /** The number of messages sent through the ring. */
+    private static final int MESSAGES = 2000;
+    /** The offset of the first record in a ring file. */
+    private static final int DATA_OFFSET = 384;
+
+    @Test
+    public void exchangeMessagesTest()
+            throws IOException, InterruptedException, ExecutionException,
+            TimeoutException {
+        final List<Proto.User> users = new ArrayList<Proto.User>();
+        for (int i = 0; i < MESSAGES; i++) {
+            final Proto.User.Builder builder = Proto.User.newBuilder()
+                    .setName("Albert Einstein " + i);
+            for (int j = 0; j < i % 5; j++) {
+                builder.addPhone(Proto.User.PhoneNumber.newBuilder().setNumber("555-" + j));
+            }
+            users.add(builder.build());
+        }
+
+        for (final SharedMemoryProtobufChannel.WaitStrategy waitStrategy
+                : SharedMemoryProtobufChannel.WaitStrategy.values()) {
+            final File ringFile = File.createTempFile("grizzly-protobuf", ".ring");
+            ringFile.deleteOnExit();
+
+            // each end of the ring is opened separately, as by two processes
+            final SharedMemoryProtobufChannel producer = SharedMemoryProtobufChannel.open(
+                    new Varint32ProtobufFilter(Proto.User.getDefaultInstance()),
+                    ringFile, CAPACITY, waitStrategy);
+            final SharedMemoryProtobufChannel consumer = SharedMemoryProtobufChannel.open(
+                    new Varint32ProtobufFilter(Proto.User.getDefaultInstance()),
+                    ringFile, CAPACITY, waitStrategy);
+
+            final ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                final Future<Void> writes = executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        for (final Proto.User user : users) {
+                            producer.write(user);
+                        }
+                        return null;
+                    }
+                });
+
+                for (final Proto.User user : users) {
+                    assertEquals(user, consumer.read());
+                }
+                writes.get(10, TimeUnit.SECONDS);
+                assertNull(consumer.poll());
+            } finally {
+                executor.shutdownNow();
+                producer.close();
+                consumer.close();
+            }
+        }
+    }
+
+    @Test
+    public void wrapAroundTest()
+            throws IOException, InterruptedException, ExecutionException,
+            TimeoutException {
+        final File ringFile = File.createTempFile("grizzly-protobuf", ".ring");
+        ringFile.deleteOnExit();
+
+        final SharedMemoryProtobufChannel producer = SharedMemoryProtobufChannel.open(
+                new Varint32ProtobufFilter(Proto.User.getDefaultInstance()),
+                ringFile, CAPACITY, SharedMemoryProtobufChannel.WaitStrategy.YIELD);
+        final SharedMemoryProtobufChannel consumer = SharedMemoryProtobufChannel.open(
+                new Varint32ProtobufFilter(Proto.User.getDefaultInstance()),
+                ringFile, CAPACITY, SharedMemoryProtobufChannel.WaitStrategy.YIELD);
+
+        // a record of half the ring, then a record longer than both the space
+        // left before the end of the ring and the space before its position
+        final Proto.User half = newUser(247);
+        final Proto.User wrapped = newUser(278);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            producer.write(half);
+            assertEquals(half, consumer.read());
+
+            final Future<Void> write = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    producer.write(wrapped);
+                    return null;
+                }
+            });
+            final Future<MessageLite> read = executor.submit(new Callable<MessageLite>() {
+                @Override
+                public MessageLite call() throws IOException {
+                    return consumer.read();
+                }
+            });
+            assertEquals(wrapped, read.get(10, TimeUnit.SECONDS));
+            write.get(10, TimeUnit.SECONDS);
+            assertNull(consumer.poll());
+        } finally {
+            executor.shutdownNow();
+            producer.close();
+            consumer.close();
+        }
+    }
+
+    @Test
+    public void deltaEncodingTest() throws IOException {
+        final File ringFile = File.createTempFile("grizzly-protobuf", ".ring");
+        ringFile.deleteOnExit();
+
+        final Varint32ProtobufFilter producerFilter =
+                new Varint32ProtobufFilter(Proto.User.getDefaultInstance());
+        producerFilter.setDeltaEncoding(4);
+        final Varint32ProtobufFilter consumerFilter =
+                new Varint32ProtobufFilter(Proto.User.getDefaultInstance());
+        consumerFilter.setDeltaEncoding(4);
+
+        final SharedMemoryProtobufChannel producer = SharedMemoryProtobufChannel.open(
+                producerFilter, ringFile, CAPACITY, SharedMemoryProtobufChannel.WaitStrategy.YIELD);
+        final SharedMemoryProtobufChannel consumer = SharedMemoryProtobufChannel.open(
+                consumerFilter, ringFile, CAPACITY, SharedMemoryProtobufChannel.WaitStrategy.YIELD);
+        try {
+            for (int i = 0; i < 20; i++) {
+                final Proto.User user = Proto.User.newBuilder()
+                        .setName("Albert Einstein")
+                        .setEmail("albert" + i + "@example.com")
+                        .build();
+                producer.write(user);
+                assertEquals(user, consumer.read());
+            }
+        } finally {
+            producer.close();
+            consumer.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void messageTooLargeTest() throws IOException {
+        final File ringFile = File.createTempFile("grizzly-protobuf", ".ring");
+        ringFile.deleteOnExit();
+
+        final SharedMemoryProtobufChannel channel = SharedMemoryProtobufChannel.open(
+                new FixedLengthProtobufFilter(Proto.User.getDefaultInstance(), 4),
+                ringFile, 16, SharedMemoryProtobufChannel.WaitStrategy.YIELD);
+        try {
+            channel.write(Proto.User.newBuilder().setName("Albert Einstein").build());
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void corruptRecordTest() throws IOException {
+        final File ringFile = File.createTempFile("grizzly-protobuf", ".ring");
+        ringFile.deleteOnExit();
+
+        final SharedMemoryProtobufChannel producer = SharedMemoryProtobufChannel.open(
+                new Varint32ProtobufFilter(Proto.User.getDefaultInstance()),
+                ringFile, CAPACITY, SharedMemoryProtobufChannel.WaitStrategy.YIELD);
+        final SharedMemoryProtobufChannel consumer = SharedMemoryProtobufChannel.open(
+                new Varint32ProtobufFilter(Proto.User.getDefaultInstance()),
+                ringFile, CAPACITY, SharedMemoryProtobufChannel.WaitStrategy.YIELD);
+        final RandomAccessFile file = new RandomAccessFile(ringFile, "rw");
+        try {
+            producer.write(newUser(10));
+
+            // longer than the ring, then negative but not the padding marker
+            for (final int frameLength : new int[] { CAPACITY, -2 }) {
+                file.seek(DATA_OFFSET);
+                file.writeInt(frameLength);
+                try {
+                    consumer.poll();
+                    fail("Expected an IOException for a frame length of " + frameLength);
+                } catch (final IOException e) {
+                    assertTrue(e.getMessage().startsWith("Corrupt record"));
+                }
+            }
+        } finally {
+            file.close();
+            producer.close();
+            consumer.close();
+        }
+    }
+
+    /** A message with a name of the supplied length. */
+    private static Proto.User newUser(final int nameLength) {
+        final StringBuilder name = new StringBuilder();
+        while (name.length() < nameLength) {
+            name.append('a');
+        }
+        return Proto.User.newBuilder().setName(name.toString()).build();
+    }
+
+}
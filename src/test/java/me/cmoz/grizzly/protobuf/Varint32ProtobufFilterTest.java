@@ -16,6 +16,8 @@
 package me.cmoz.grizzly.protobuf;
 
 import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.EmptyCompletionHandler;
+import org.glassfish.grizzly.WriteResult;
 import org.glassfish.grizzly.filterchain.*;
 import org.glassfish.grizzly.nio.NIOTransport;
 import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
@@ -23,11 +25,16 @@ import org.glassfish.grizzly.utils.DataStructures;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.net.ServerSocket;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * {@link me.cmoz.grizzly.protobuf.Varint32ProtobufFilter}.
@@ -36,6 +43,8 @@ public class Varint32ProtobufFilterTest {
 
     /** The port for the local test. */
     private static final int PORT = 20389;
+    /** The port of a peer that never reads. */
+    private static final int SLOW_PEER_PORT = 20395;
 
     @Test
     @SuppressWarnings("unchecked")
@@ -87,6 +96,140 @@ public class Varint32ProtobufFilterTest {
         }
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void streamedMessageTest()
+            throws IOException, InterruptedException, ExecutionException,
+            TimeoutException {
+        final Proto.User.Builder builder = Proto.User.newBuilder()
+                .setName("Albert Einstein")
+                .setEmail("albert.einstein@gmail.com");
+        for (int i = 0; i < 100; i++) {
+            builder.addPhone(Proto.User.PhoneNumber.newBuilder().setNumber("555-" + i));
+        }
+        final Proto.User user = builder.build();
+
+        final Varint32ProtobufFilter serverProtobufFilter =
+                new Varint32ProtobufFilter(user.getDefaultInstanceForType());
+        serverProtobufFilter.setStreaming(256, 100);
+        final FilterChainBuilder serverFilterBuilder = FilterChainBuilder.stateless()
+                .add(new TransportFilter())
+                .add(serverProtobufFilter)
+                .add(new ProtoServerFilter(user));
+
+        final NIOTransport transport = TCPNIOTransportBuilder.newInstance()
+                .setProcessor(serverFilterBuilder.build())
+                .build();
+
+        Connection connection = null;
+        try {
+            transport.bind(PORT);
+            transport.start();
+
+            connection = transport.connect("localhost", PORT).get();
+
+            final BlockingQueue<Proto.User> resultQueue = DataStructures.getLTQInstance(Proto.User.class);
+
+            final Varint32ProtobufFilter clientProtobufFilter =
+                    new Varint32ProtobufFilter(user.getDefaultInstanceForType());
+            clientProtobufFilter.setStreaming(256, 100);
+            final FilterChainBuilder clientFilterBuilder = FilterChainBuilder.stateless()
+                    .add(new TransportFilter())
+                    .add(clientProtobufFilter)
+                    .add(new ProtoClientFilter(resultQueue));
+
+            connection.setProcessor(clientFilterBuilder.build());
+
+            connection.write(user).get(10, TimeUnit.SECONDS);
+
+            assertEquals(user, resultQueue.poll(10, TimeUnit.SECONDS));
+        } finally {
+            if (connection != null)
+                connection.close();
+
+            transport.stop();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void streamedWriteFailureTest()
+            throws IOException, InterruptedException, ExecutionException {
+        final StringBuilder name = new StringBuilder();
+        while (name.length() < 32 * 1024 * 1024) {
+            name.append("Albert Einstein ");
+        }
+        final Proto.User user = Proto.User.newBuilder().setName(name.toString()).build();
+
+        final Varint32ProtobufFilter protobufFilter =
+                new Varint32ProtobufFilter(user.getDefaultInstanceForType());
+        protobufFilter.setStreaming(1024, 64 * 1024);
+        final NIOTransport transport = TCPNIOTransportBuilder.newInstance()
+                .setProcessor(FilterChainBuilder.stateless()
+                        .add(new TransportFilter())
+                        .add(protobufFilter)
+                        .build())
+                .build();
+        transport.setWriteTimeout(1, TimeUnit.SECONDS);
+
+        // a peer that never reads, so the chunks cannot all be written
+        final ServerSocket peer = new ServerSocket(SLOW_PEER_PORT);
+        Connection connection = null;
+        try {
+            transport.start();
+            connection = transport.connect("localhost", SLOW_PEER_PORT).get();
+
+            final BlockingQueue<Throwable> failures = DataStructures.getLTQInstance(Throwable.class);
+            connection.write(user, new EmptyCompletionHandler<WriteResult>() {
+                @Override
+                public void failed(final Throwable throwable) {
+                    failures.add(throwable);
+                }
+            });
+
+            assertNotNull(failures.poll(10, TimeUnit.SECONDS));
+            assertFalse(connection.isOpen());
+        } finally {
+            if (connection != null)
+                connection.close();
+
+            transport.stop();
+            peer.close();
+        }
+    }
+
+    @Test
+    public void warmUpTest() {
+        final Proto.User sample =
+                (Proto.User) WarmUpSamples.synthesize(Proto.User.getDefaultInstance());
+        assertTrue(sample.isInitialized());
+        assertTrue(sample.hasEmail());
+        assertEquals(1, sample.getPhoneCount());
+
+        final FrameTracer tracer = new FrameTracer(1, 1, TimeUnit.HOURS, 16);
+        final Varint32ProtobufFilter protobufFilter =
+                new Varint32ProtobufFilter(Proto.User.getDefaultInstance());
+        protobufFilter.setDeltaEncoding(8);
+        protobufFilter.setFrameTracer(tracer);
+        protobufFilter.warmUp(100);
+        protobufFilter.warmUp(100, sample, Proto.User.getDefaultInstance());
+        assertTrue(tracer.getSampledFrames().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void warmUpWithoutSamplesTest() {
+        // the default instance is missing the required name
+        new Varint32ProtobufFilter(Proto.User.getDefaultInstance())
+                .warmUp(100, Proto.User.getDefaultInstance());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void warmUpDecodeFailureTest() {
+        // an empty view encodes to a message missing the required name
+        new Varint32ProtobufFilter(Proto.User.getDefaultInstance())
+                .warmUp(100, new ProtobufFlyweight(Proto.User.getDefaultInstance()));
+    }
+
     private static class ProtoServerFilter extends BaseFilter {
 
         /** The message to send outbound. */